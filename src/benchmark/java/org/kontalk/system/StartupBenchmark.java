@@ -0,0 +1,201 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.SortedSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kontalk.misc.KonException;
+import org.kontalk.model.BenchmarkContent;
+import org.kontalk.model.KonMessage;
+import org.kontalk.model.KonThread;
+import org.kontalk.model.ThreadList;
+import org.kontalk.model.User;
+
+/**
+ * Headless cold-start benchmark of the model loading.
+ *
+ * Generate a database in a separate run, then measure each run in a new JVM
+ * (to be cold, ideally with dropped file system caches):
+ * <pre>
+ * generate &lt;dir&gt; &lt;users&gt; &lt;threads&gt; &lt;messages per thread&gt;
+ * run &lt;dir&gt;
+ * </pre>
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public final class StartupBenchmark {
+    private static final Logger LOGGER = Logger.getLogger(StartupBenchmark.class.getName());
+
+    /** Rows inserted in one transaction. */
+    private static final int CHUNK = 1000;
+
+    private StartupBenchmark() {}
+
+    public static void main(String[] args) {
+        if (args.length == 5 && args[0].equals("generate")) {
+            generate(args[1],
+                    Integer.parseInt(args[2]),
+                    Integer.parseInt(args[3]),
+                    Integer.parseInt(args[4]));
+        } else if (args.length == 2 && args[0].equals("run")) {
+            run(args[1]);
+        } else {
+            System.err.println("Usage: java " + StartupBenchmark.class.getName() +
+                    " generate <dir> <users> <threads> <messages per thread> | run <dir>");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    private static void generate(String dir, int users, int threads, int messages) {
+        File dbFile = new File(dir, Database.DB_NAME);
+        if (dbFile.exists()) {
+            System.err.println("database already exists: " + dbFile);
+            System.exit(2);
+        }
+        dbFile.getParentFile().mkdirs();
+        Database db = initialize(dbFile);
+
+        List<List<Object>> rows = new ArrayList<>(CHUNK);
+        for (int i = 1; i <= users; i++) {
+            rows.add(Arrays.<Object>asList(i, "user" + i + "@bench.kontalk.net",
+                    "User " + i, "", null, false));
+            rows = flushChunk(db, User.TABLE, Arrays.asList("_id", User.COL_JID,
+                    User.COL_NAME, User.COL_STAT, User.COL_LAST_SEEN, User.COL_ENCR),
+                    rows, i == users);
+        }
+
+        for (int i = 1; i <= threads; i++) {
+            rows.add(Arrays.<Object>asList(i, "", true, "{}"));
+            rows = flushChunk(db, KonThread.TABLE, Arrays.asList("_id",
+                    KonThread.COL_SUBJ, KonThread.COL_READ, KonThread.COL_VIEW_SET),
+                    rows, i == threads);
+        }
+
+        for (int i = 1; i <= threads; i++) {
+            rows.add(Arrays.<Object>asList(i, i, userID(i, users)));
+            rows = flushChunk(db, KonThread.TABLE_RECEIVER,
+                    Arrays.asList("_id", "thread_id", "user_id"),
+                    rows, i == threads);
+        }
+
+        List<String> columns = Arrays.asList(KonMessage.COL_THREAD_ID,
+                KonMessage.COL_DIR, KonMessage.COL_USER_ID, KonMessage.COL_JID,
+                KonMessage.COL_XMPP_ID, KonMessage.COL_DATE,
+                KonMessage.COL_REC_STAT, KonMessage.COL_CONTENT,
+                KonMessage.COL_CONTENT_BIN,
+                KonMessage.COL_ENCR_STAT, KonMessage.COL_SIGN_STAT,
+                KonMessage.COL_COD_ERR, KonMessage.COL_SERV_ERR);
+        long date = System.currentTimeMillis() - (long) threads * messages * 1000;
+        int count = 0;
+        for (int m = 0; m < messages; m++) {
+            for (int t = 1; t <= threads; t++) {
+                count++;
+                int userID = userID(t, users);
+                boolean in = count % 2 == 0;
+                rows.add(Arrays.<Object>asList(t,
+                        in ? KonMessage.Direction.IN : KonMessage.Direction.OUT,
+                        userID,
+                        "user" + userID + "@bench.kontalk.net",
+                        "bench" + count,
+                        new Date(date + count * 1000L),
+                        in ? KonMessage.Status.IN : KonMessage.Status.RECEIVED,
+                        // content like saved by current version, JSON is only
+                        // read for old rows
+                        "",
+                        BenchmarkContent.toBytes("benchmark message " + count),
+                        0, 0, 0, "{}"));
+                rows = flushChunk(db, KonMessage.TABLE, columns, rows,
+                        m == messages - 1 && t == threads);
+            }
+        }
+
+        db.close();
+        System.out.println("generated database: " + dbFile);
+    }
+
+    private static void run(String dir) {
+        StartupTracer tracer = StartupTracer.getInstance();
+        tracer.begin();
+
+        File dbFile = new File(dir, Database.DB_NAME);
+        if (!dbFile.exists()) {
+            System.err.println("database does not exist: " + dbFile);
+            System.exit(2);
+        }
+        Database db = initialize(dbFile);
+        tracer.phase("database");
+
+        ThreadList threadList = ThreadList.getInstance();
+        threadList.loadWithUsers();
+        tracer.phase("users + threads");
+
+        threadList.loadPreviews();
+        tracer.phase("previews");
+
+        // open the most recent thread
+        SortedSet<KonThread> threads = threadList.getAll();
+        Optional<KonThread> newest = Optional.empty();
+        for (KonThread thread : threads) {
+            Optional<Date> date = thread.getMessages().getLastDate();
+            if (date.isPresent() && (!newest.isPresent() ||
+                    newest.get().getMessages().getLastDate().get().before(date.get())))
+                newest = Optional.of(thread);
+        }
+        if (newest.isPresent())
+            newest.get().getMessages().getAll();
+        tracer.phase("open thread");
+
+        System.out.println(tracer.report());
+        db.close();
+    }
+
+    private static Database initialize(File dbFile) {
+        try {
+            Database.initialize(dbFile.getPath());
+        } catch (KonException ex) {
+            LOGGER.log(Level.SEVERE, "can't initialize database", ex);
+            System.exit(3);
+        }
+        return Database.getInstance();
+    }
+
+    /** Insert rows if chunk is full or this is the last row. */
+    private static List<List<Object>> flushChunk(Database db, String table,
+            List<String> columns, List<List<Object>> rows, boolean last) {
+        if (rows.size() < CHUNK && !last)
+            return rows;
+        if (!db.execReplace(table, columns, rows)) {
+            System.err.println("can't insert into " + table);
+            System.exit(4);
+        }
+        return new ArrayList<>(CHUNK);
+    }
+
+    private static int userID(int threadID, int users) {
+        return (threadID - 1) % users + 1;
+    }
+}
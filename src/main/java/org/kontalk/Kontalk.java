@@ -34,9 +34,11 @@ import java.util.logging.SimpleFormatter;
 import org.apache.commons.lang.SystemUtils;
 import org.kontalk.crypto.PGPUtils;
 import org.kontalk.model.ThreadList;
-import org.kontalk.model.UserList;
+import org.kontalk.model.MessageContent;
+import org.kontalk.model.MessageSearch;
 import org.kontalk.system.Config;
 import org.kontalk.system.Control;
+import org.kontalk.system.StartupTracer;
 import org.kontalk.util.CryptoUtils;
 import org.kontalk.util.Tr;
 import org.kontalk.view.View;
@@ -116,7 +118,11 @@ public final class Kontalk {
     }
 
     public void start() {
+        StartupTracer tracer = StartupTracer.getInstance();
+        tracer.begin();
+
         Config.initialize(CONFIG_DIR + "/" + Config.CONF_NAME);
+        tracer.phase("config");
 
         Control control = new Control();
 
@@ -126,6 +132,7 @@ public final class Kontalk {
             return; // never reached
         }
         View view = optView.get();
+        tracer.phase("view create");
 
         try {
             Database.initialize(CONFIG_DIR + "/" + Database.DB_NAME);
@@ -134,14 +141,23 @@ public final class Kontalk {
             control.shutDown();
             return; // never reached
         }
+        tracer.phase("database");
 
-        // order matters!
-        UserList.getInstance().load();
-        ThreadList.getInstance().load();
+        ThreadList.getInstance().loadWithUsers();
+        tracer.phase("users + threads");
 
         view.init();
+        tracer.phase("view init");
+
+        // show threads now, dates of last activity follow
+        ThreadList.getInstance().loadPreviewsAsync();
+        MessageSearch.indexMissingAsync();
+        MessageContent.convertJSONAsync();
 
         control.launch();
+        tracer.phase("launch");
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.fine(tracer.report());
     }
 
     // parse optional arguments
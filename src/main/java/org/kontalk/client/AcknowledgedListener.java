@@ -18,13 +18,12 @@
 
 package org.kontalk.client;
 
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.jivesoftware.smack.StanzaListener;
 import org.jivesoftware.smack.packet.Message;
 import org.jivesoftware.smack.packet.Stanza;
-import org.jivesoftware.smackx.chatstates.packet.ChatStateExtension;
-import org.jivesoftware.smackx.receipts.DeliveryReceipt;
 import org.kontalk.model.KonMessage.Status;
 import org.kontalk.system.Control;
 import org.kontalk.system.Control.MessageIDs;
@@ -47,24 +46,14 @@ public final class AcknowledgedListener implements StanzaListener {
         // note: the packet is not the acknowledgement itself but the packet that
         // is acknowledged
         if (!(p instanceof Message)) {
-            // we are only interested in acks for messages
+            // we are only interested in acks for messages, receipts and chat
+            // states are sent as templates
             return;
         }
         Message m = (Message) p;
 
-        LOGGER.info("got acknowledgement for message: "+m.toXML());
-
-        if (DeliveryReceipt.from(m) != null) {
-            // this is an ack for a 'received' message send by
-            // KonMessageListener (XEP-0184), nothing must be done
-            return;
-        }
-
-        if (m.getBody() == null && m.getExtensions().size() == 1 &&
-                m.getExtension(ChatStateExtension.NAMESPACE) != null) {
-            // this is an ack for a chat state notification (XEP-0085), ignore
-            return;
-        }
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.fine("got acknowledgement for message: "+m.toXML());
 
         mControl.setMessageStatus(MessageIDs.from(m), Status.SENT);
     }
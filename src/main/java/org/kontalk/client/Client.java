@@ -27,6 +27,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.bouncycastle.openpgp.PGPException;
+import org.jivesoftware.smack.ReconnectionManager;
 import org.jivesoftware.smack.StanzaListener;
 import org.jivesoftware.smack.roster.Roster;
 import org.jivesoftware.smack.roster.RosterListener;
@@ -68,13 +69,24 @@ public final class Client implements StanzaListener, Runnable {
 
     private static final LinkedBlockingQueue<Task> TASK_QUEUE = new LinkedBlockingQueue<>();
 
-    private static enum Command {CONNECT, DISCONNECT};
+    private static enum Command {CONNECT, DISCONNECT, RECONNECT};
 
     private final Control mControl;
-    private KonConnection mConn = null;
+    private final Outbox mOutbox;
+    private final ReconnectScheduler mReconnect;
+    private final StanzaDispatcher mDispatcher;
+    private final ReceiptSender mReceiptSender;
+    private final StanzaWriter mWriter = new StanzaWriter();
+    private volatile KonConnection mConn = null;
+    // key of last connect, used for reconnecting
+    private PersonalKey mKey = null;
 
     public Client(Control control) {
         mControl = control;
+        mOutbox = new Outbox(this);
+        mReconnect = new ReconnectScheduler(this);
+        mDispatcher = new StanzaDispatcher();
+        mReceiptSender = new ReceiptSender(this);
         //mLimited = limited;
 
         // enable debug window
@@ -82,7 +94,14 @@ public final class Client implements StanzaListener, Runnable {
     }
 
     public void connect(PersonalKey key) {
+        mReconnect.resetBackoff();
+        this.createConnection(key);
+    }
+
+    private void createConnection(PersonalKey key) {
         this.disconnect();
+        mKey = key;
+        mReconnect.setEnabled(true);
         mControl.setStatus(Control.Status.CONNECTING);
 
         Config config = Config.getInstance();
@@ -107,27 +126,47 @@ public final class Client implements StanzaListener, Runnable {
             return;
         }
 
+        mWriter.setConnection(mConn);
+
+        // reconnecting is done by us
+        ReconnectionManager.getInstanceFor(mConn).disableAutomaticReconnection();
+
         // connection listener
-        mConn.addConnectionListener(new KonConnectionListener(mControl));
+        mConn.addConnectionListener(new KonConnectionListener(this, mControl));
+
+        // once per connection, the connection is reused for stream resumption
+        mConn.addStanzaAcknowledgedListener(new AcknowledgedListener(mControl));
 
         // packet listeners
-        RosterListener rl = new KonRosterListener(Roster.getInstanceFor(mConn), mControl);
+        // note: stanzas are handled by the dispatcher, synchronous listeners
+        // only keep the order of arrival
+        RosterListener rl = new KonRosterListener(Roster.getInstanceFor(mConn), mControl, mDispatcher);
         Roster.getInstanceFor(mConn).addRosterListener(rl);
 
         StanzaFilter messageFilter = new StanzaTypeFilter(Message.class);
-        mConn.addAsyncStanzaListener(new KonMessageListener(this, mControl), messageFilter);
+        mConn.addSyncStanzaListener(
+                mDispatcher.wrap(new KonMessageListener(this, mControl)),
+                messageFilter);
 
         StanzaFilter vCardFilter = new StanzaTypeFilter(VCard4.class);
-        mConn.addAsyncStanzaListener(new VCardListener(mControl), vCardFilter);
+        mConn.addSyncStanzaListener(
+                mDispatcher.wrap(new VCardListener(mControl)),
+                vCardFilter);
 
         StanzaFilter blockingCommandFilter = new StanzaTypeFilter(BlockingCommand.class);
-        mConn.addAsyncStanzaListener(new BlockListListener(mControl), blockingCommandFilter);
+        mConn.addSyncStanzaListener(
+                mDispatcher.wrap(new BlockListListener(mControl)),
+                blockingCommandFilter);
 
         StanzaFilter publicKeyFilter = new StanzaTypeFilter(PublicKeyPublish.class);
-        mConn.addAsyncStanzaListener(new PublicKeyListener(mControl), publicKeyFilter);
+        mConn.addSyncStanzaListener(
+                mDispatcher.wrap(new PublicKeyListener(mControl)),
+                publicKeyFilter);
 
         StanzaFilter presenceFilter = new StanzaTypeFilter(Presence.class);
-        mConn.addAsyncStanzaListener(new PresenceListener(this, Roster.getInstanceFor(mConn), mControl), presenceFilter);
+        mConn.addSyncStanzaListener(
+                mDispatcher.wrap(new PresenceListener(this, Roster.getInstanceFor(mConn), mControl)),
+                presenceFilter);
 
          // fallback listener
         mConn.addAsyncStanzaListener(this,
@@ -155,12 +194,14 @@ public final class Client implements StanzaListener, Runnable {
         synchronized (this) {
             // connect
             LOGGER.info("connecting to "+mConn.getDestination()+" ...");
+            mReconnect.connecting();
             try {
                 mConn.connect();
             } catch (XMPPException | SmackException | IOException ex) {
                 LOGGER.log(Level.WARNING, "can't connect", ex);
                 mControl.setStatus(Control.Status.FAILED);
                 mControl.handleException(new KonException(KonException.Error.CLIENT_CONNECT, ex));
+                mReconnect.connectionFailed();
                 return;
             }
 
@@ -171,20 +212,68 @@ public final class Client implements StanzaListener, Runnable {
                 LOGGER.log(Level.WARNING, "can't login", ex);
                 mControl.setStatus(Control.Status.FAILED);
                 mControl.handleException(new KonException(KonException.Error.CLIENT_LOGIN, ex));
+                // retrying is useless if login was rejected
+                if (ex instanceof XMPPException)
+                    mReconnect.setEnabled(false);
+                else
+                    mReconnect.connectionFailed();
                 return;
             }
         }
 
-        mConn.addStanzaAcknowledgedListener(new AcknowledgedListener(mControl));
-
-        this.sendInitialPresence();
+        // on resumption the session state is still valid at the server and
+        // unacknowledged stanzas are resent by Smack
+        if (mConn.streamWasResumed()) {
+            LOGGER.info("stream resumed");
+        } else {
+            this.sendInitialPresence();
 
-        this.sendBlocklistRequest();
+            this.sendBlocklistRequest();
+        }
 
+        mReconnect.connected();
         mControl.setStatus(Control.Status.CONNECTED);
+        // messages and receipts queued while disconnected
+        mOutbox.requestFlush();
+        mReceiptSender.requestFlush();
+    }
+
+    /**
+     * If the last connect resumed the previous XMPP session (XEP-0198).
+     */
+    public boolean streamWasResumed() {
+        return mConn != null && mConn.streamWasResumed();
+    }
+
+    /** Called by connection listener if the connection was closed on error. */
+    void onConnectionLost() {
+        mReconnect.connectionFailed();
+    }
+
+    /** Called by reconnect scheduler. */
+    void queueReconnect() {
+        List<?> args = new ArrayList<>(0);
+        Client.TASK_QUEUE.offer(new Client.Task(Client.Command.RECONNECT, args));
+    }
+
+    private void reconnect() {
+        if (mKey == null || !mReconnect.isEnabled())
+            return;
+
+        // the previous session can only be resumed with the same connection
+        if (mConn != null && !mConn.isConnected() && mConn.isSmResumptionPossible()) {
+            LOGGER.info("reconnecting, trying to resume stream...");
+            mControl.setStatus(Control.Status.CONNECTING);
+            this.connectAsync();
+            return;
+        }
+
+        LOGGER.info("reconnecting...");
+        this.createConnection(mKey);
     }
 
     public void disconnect() {
+        mReconnect.setEnabled(false);
         synchronized (this) {
             if (mConn != null && mConn.isConnected()) {
                 mConn.disconnect();
@@ -202,17 +291,30 @@ public final class Client implements StanzaListener, Runnable {
         return mConn == null || !mConn.isAuthenticated() ? "" : mConn.getUser();
     }
 
+    boolean isConnected() {
+        return mConn != null && mConn.isAuthenticated();
+    }
+
+    /**
+     * Queue a message for sending. The message is sent when connected.
+     */
     public void sendMessage(OutMessage message) {
         // check for correct receipt status and reset it
         Status status = message.getReceiptStatus();
         assert status == Status.PENDING || status == Status.ERROR;
         message.setStatus(Status.PENDING);
 
-        if (mConn == null || !mConn.isAuthenticated()) {
-            LOGGER.info("not sending message, not connected");
-            return;
-        }
+        if (!this.isConnected())
+            LOGGER.info("not connected, message is sent later");
 
+        mOutbox.add(message);
+    }
+
+    /**
+     * Create the (encrypted) stanza for a message.
+     * @return the stanza or empty if encryption failed
+     */
+    Optional<Message> createMessageStanza(OutMessage message) {
         Message smackMessage = new Message(message.getJID(), Message.Type.chat);
         smackMessage.setStanzaId(message.getXMPPID());
         smackMessage.addExtension(new DeliveryReceiptRequest());
@@ -232,12 +334,12 @@ public final class Client implements StanzaListener, Runnable {
                 LOGGER.warning("encryption failed, not sending message");
                 message.setStatus(Status.ERROR);
                 mControl.handleSecurityErrors(message);
-                return;
+                return Optional.empty();
             }
             smackMessage.addExtension(new E2EEncryption(encrypted.get()));
         }
 
-        this.sendPacket(smackMessage);
+        return Optional.of(smackMessage);
     }
 
     public void sendVCardRequest(String jid) {
@@ -295,21 +397,59 @@ public final class Client implements StanzaListener, Runnable {
         if (!Config.getInstance().getBoolean(Config.NET_SEND_CHAT_STATE))
             return;
 
-        Message message = new Message(jid, Message.Type.chat);
-        if (optThreadID.isPresent())
-            message.setThread(optThreadID.get());
-        message.addExtension(new ChatStateExtension(state));
+        // chat states are not important, don't wait if queue is full
+        if (this.isConnected())
+            mWriter.offer(TemplateStanza.chatState(jid, optThreadID, state));
+    }
 
-        this.sendPacket(message);
+    /** Send a delivery receipt for a received message (batched). */
+    void sendReceipt(String to, String receiptID) {
+        mReceiptSender.add(to, receiptID);
     }
 
-    synchronized void sendPacket(Stanza p) {
-        try {
-            mConn.sendStanza(p);
-        } catch (SmackException.NotConnectedException ex) {
+    /**
+     * Send multiple stanzas in one burst.
+     * @param listener informed about queued stanzas that could not be sent,
+     * or null
+     * @return the number of stanzas queued for sending, less than the list
+     * size if not connected
+     */
+    int sendPackets(List<? extends Stanza> packets, StanzaWriter.DropListener listener) {
+        if (!this.isConnected()) {
+            LOGGER.info("can't send packets, not connected.");
+            return 0;
+        }
+        int sent = 0;
+        for (Stanza p : packets) {
+            if (!mWriter.put(p, listener))
+                break;
+            sent++;
+        }
+        return sent;
+    }
+
+    /**
+     * Send a stanza. Does not block on network I/O.
+     * @return true if the stanza was queued for sending, false if not
+     * connected
+     */
+    boolean sendPacket(Stanza p) {
+        return this.sendPacket(p, null);
+    }
+
+    /**
+     * Send a stanza. Does not block on network I/O.
+     * @param listener informed if the stanza was queued but could not be
+     * sent, or null
+     * @return true if the stanza was queued for sending, false if not
+     * connected
+     */
+    boolean sendPacket(Stanza p, StanzaWriter.DropListener listener) {
+        if (!this.isConnected()) {
             LOGGER.info("can't send packet, not connected.");
+            return false;
         }
-        LOGGER.info("sent packet: "+p.toXML());
+        return mWriter.put(p, listener);
     }
 
     @Override
@@ -351,6 +491,9 @@ public final class Client implements StanzaListener, Runnable {
                 case DISCONNECT:
                     this.disconnect();
                     break;
+                case RECONNECT:
+                    this.reconnect();
+                    break;
             }
         }
     }
@@ -19,9 +19,14 @@
 package org.kontalk.client;
 
 import java.util.logging.Logger;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -30,20 +35,31 @@ import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.net.ssl.SSLContext;
-import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.kontalk.util.TrustUtils;
 
 /**
@@ -57,13 +73,38 @@ public class DownloadClient {
     private static final Pattern CONTENT_DISPOSITION_PATTERN = Pattern
             .compile("attachment;\\s*filename\\s*=\\s*\"([^\"]*)\"");
 
+    /** Regex used to parse content-range headers */
+    private static final Pattern CONTENT_RANGE_PATTERN = Pattern
+            .compile("bytes\\s+(\\d+)-(\\d+)/(\\d+|\\*)");
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_RETRIES = 5;
+    /** Delay before resuming, multiplied with the number of attempts. */
+    private static final long RETRY_DELAY = 1000;
+
+    private static final int MAX_CONNECTIONS = 8;
+    private static final int MAX_CONNECTIONS_PER_ROUTE = 4;
+
+    private static final String PART_EXT = ".part";
+    private static final String META_EXT = ".meta";
+
+    private static CloseableHttpClient SHARED_CLIENT = null;
+    /** Number of running downloads per client, guarded by class. */
+    private static final Map<CloseableHttpClient, Integer> SHARED_USERS = new HashMap<>();
+    private static PrivateKey SHARED_KEY = null;
+    private static X509Certificate SHARED_CERT = null;
+    private static boolean SHARED_VALIDATE = false;
+
     private final PrivateKey mPrivateKey;
     private final X509Certificate mCertificate;
     private final boolean mValidateCertificate;
     private final ProgressListener mListener;
 
-    private HttpRequestBase mCurrentRequest;
-    private CloseableHttpClient mHTTPClient;
+    private volatile HttpRequestBase mCurrentRequest = null;
+    private volatile boolean mAborted = false;
+    /** If the last request failed permanently. */
+    private boolean mGone = false;
+    private CloseableHttpClient mHTTPClient = null;
 
     public DownloadClient(PrivateKey privateKey,
             X509Certificate bridgeCert,
@@ -75,117 +116,359 @@ public class DownloadClient {
         mListener = listener;
     }
 
-    // TODO unused
+    /**
+     * Abort the current or next download. Can be called from any thread.
+     */
     public void abort() {
-        if (mCurrentRequest != null)
-            mCurrentRequest.abort();
+        mAborted = true;
+        HttpRequestBase request = mCurrentRequest;
+        if (request != null)
+            request.abort();
         mListener.updateProgress(-3);
     }
 
     /**
      * Downloads to a directory represented by a {@link File} object,
      * determining the file name from the Content-Disposition header.
+     *
+     * Received data is written to a partial file first. If the download
+     * fails, the partial file is kept and the download is resumed with a range
+     * request when it is started again for the same URL.
      * @param url URL of file
      * @param base base directory in which the download is saved
+     * @param length the announced length of the file in bytes, or -1 if
+     * unknown
      * @return the absolute file path of the downloaded file, or an empty string
      * if the file could not be downloaded
      */
-    public String download(String url, File base) {
-        if (mHTTPClient == null) {
-            mHTTPClient = createHTTPClient(mPrivateKey, mCertificate, mValidateCertificate);
-            if (mHTTPClient == null)
-                return "";
+    public String download(String url, File base, long length) {
+        if (!this.acquireClient())
+            return "";
+        try {
+            return this.downloadToFile(url, base, length);
+        } finally {
+            this.releaseClient();
         }
+    }
 
-        LOGGER.info("downloading file from URL=" + url+ "...");
-        mCurrentRequest = new HttpGet(url);
+    private String downloadToFile(String url, File base, long length) {
+        String partName = DigestUtils.shaHex(url) + PART_EXT;
+        File partFile = new File(base, partName);
+        File metaFile = new File(base, partName + META_EXT);
+        PartMeta meta = PartMeta.load(metaFile, url);
+        long offset = meta != null && partFile.exists() ? partFile.length() : 0;
 
-        // execute request
-        CloseableHttpResponse response;
-        try {
-            response = mHTTPClient.execute(mCurrentRequest);
-        } catch (IOException ex) {
-            LOGGER.log(Level.WARNING, "can't execute request", ex);
+        ContentStream content = this.open(url, offset, meta != null ? meta.validator : "");
+        if (content == null) {
+            if (mAborted || mGone)
+                // not resumed again
+                deletePart(partFile, metaFile);
             return "";
         }
 
+        mListener.updateProgress(content.mTotal < 0 ? -2 : 0);
         try {
-            int code = response.getStatusLine().getStatusCode();
-            // HTTP/1.1 200 OK -- other codes should throw Exceptions
-            if (code != 200) {
-                LOGGER.warning("invalid response code: " + code);
+            if (offset > 0 && content.mPosition == 0)
+                LOGGER.info("can't resume, restarting download");
+
+            String filename = !content.mFilename.isEmpty() ? content.mFilename :
+                    meta != null ? meta.filename :
+                    "";
+            if (filename.isEmpty()) {
+                LOGGER.warning("no filename for download");
                 return "";
             }
-
-            // get filename
-            Header dispHeader = response.getFirstHeader("Content-Disposition");
-            if (dispHeader == null) {
-                LOGGER.warning("no content header");
+            File destination = new File(base, filename);
+            if (destination.exists()) {
+                LOGGER.warning("file already exists: "+destination.getAbsolutePath());
                 return "";
             }
-            String filename = parseContentDisposition(dispHeader.getValue());
-            // never trust incoming data
-            filename = filename != null ? new File(filename).getName() : "";
-            if (filename.isEmpty()) {
-                LOGGER.warning("no filename in content: "+dispHeader.getValue());
+            if (length >= 0 && content.mTotal >= 0 && content.mTotal != length) {
+                LOGGER.warning("length mismatch, announced: "+length+", server: "+content.mTotal);
+                deletePart(partFile, metaFile);
                 return "";
             }
+            new PartMeta(url, content.mValidator, filename).save(metaFile);
 
-            // get file size
-            long s = -1;
-            Header lengthHeader = response.getFirstHeader("Content-Length");
-            if (lengthHeader == null) {
-                LOGGER.warning("no length header");
-            } else {
-                try {
-                    s = Long.parseLong(lengthHeader.getValue());
-                } catch (NumberFormatException ex) {
-                    LOGGER.log(Level.WARNING, "can' parse file size", ex);
-                }
+            try (OutputStream out = new BufferedOutputStream(
+                    new FileOutputStream(partFile, content.mPosition > 0), BUFFER_SIZE)) {
+                IOUtils.copyLarge(content, out, new byte[BUFFER_SIZE]);
+            } catch (IOException ex) {
+                if (mAborted)
+                    LOGGER.info("download aborted");
+                else
+                    LOGGER.log(Level.WARNING, "can't download file", ex);
+                // retries are exhausted, don't leave anything behind
+                deletePart(partFile, metaFile);
+                return "";
             }
-            final long fileSize = s;
-            mListener.updateProgress(s < 0 ? -2 : 0);
 
-            // TODO should check for content-disposition parsing here
-            // and choose another filename if necessary
-            HttpEntity entity = response.getEntity();
-            if (entity == null) {
-                LOGGER.warning("no entity in response");
+            // integrity check
+            long expected = content.mTotal >= 0 ? content.mTotal : length;
+            if (expected >= 0 && partFile.length() != expected) {
+                LOGGER.warning("downloaded file has wrong length: "+partFile.length()
+                        +", expected: "+expected);
+                deletePart(partFile, metaFile);
                 return "";
             }
 
-            File destination = new File(base, filename);
-            if (destination.exists()) {
-                LOGGER.warning("file already exists: "+destination.getAbsolutePath());
+            if (!partFile.renameTo(destination)) {
+                LOGGER.warning("can't rename partial file: "+partFile.getAbsolutePath());
                 return "";
             }
-            try (FileOutputStream out = new FileOutputStream(destination)){
-                CountingOutputStream cOut = new CountingOutputStream(out) {
-                    @Override
-                    protected synchronized void afterWrite(int n) {
-                        if (fileSize <= 0)
-                            return;
+            if (!metaFile.delete())
+                LOGGER.warning("can't delete meta file: "+metaFile.getAbsolutePath());
 
-                        // inform listener
-                        mListener.updateProgress(
-                                (int) (this.getByteCount() /(fileSize * 1.0) * 100));
-                    }
-                };
-                entity.writeTo(cOut);
+            LOGGER.info("... download successful!");
+            return destination.getAbsolutePath();
+        } finally {
+            IOUtils.closeQuietly(content);
+        }
+    }
+
+    /**
+     * Downloads and passes the content stream to a handler, while it is
+     * received. The file name is determined from the Content-Disposition
+     * header.
+     * Interrupted connections are resumed with range requests, transparently
+     * for the handler.
+     * @param url URL of file
+     * @param handler consumer of the content
+     * @return the result of the handler, or an empty string if the file could
+     * not be downloaded
+     */
+    public String download(String url, ContentHandler handler) {
+        if (!this.acquireClient())
+            return "";
+        try {
+            return this.downloadToHandler(url, handler);
+        } finally {
+            this.releaseClient();
+        }
+    }
+
+    private String downloadToHandler(String url, ContentHandler handler) {
+        ContentStream content = this.open(url, 0, "");
+        if (content == null)
+            return "";
+
+        mListener.updateProgress(content.mTotal < 0 ? -2 : 0);
+        try {
+            if (content.mFilename.isEmpty()) {
+                LOGGER.warning("no filename for download");
+                return "";
+            }
+
+            String path;
+            try {
+                path = handler.handle(content, content.mFilename);
             } catch (IOException ex) {
                 LOGGER.log(Level.WARNING, "can't download file", ex);
                 return "";
             }
+            if (path.isEmpty())
+                return "";
 
             LOGGER.info("... download successful!");
-            return destination.getAbsolutePath();
+            return path;
         } finally {
-            try {
-                response.close();
-            } catch (IOException ex) {
-                LOGGER.log(Level.WARNING, "can't close response", ex);
+            IOUtils.closeQuietly(content);
+        }
+    }
+
+    private boolean acquireClient() {
+        mHTTPClient = acquireHTTPClient(mPrivateKey, mCertificate, mValidateCertificate);
+        return mHTTPClient != null;
+    }
+
+    private void releaseClient() {
+        releaseHTTPClient(mHTTPClient);
+        mHTTPClient = null;
+    }
+
+    /**
+     * Execute a (range) request and return the content of the response.
+     * @param offset position in file to start at, the returned stream may
+     * start at 0 if the server does not support the range
+     * @param validator ETag or modification date that must match for resuming
+     * @return the content stream, or null if the request failed
+     */
+    private ContentStream open(String url, long offset, String validator) {
+        mGone = false;
+        LOGGER.info("downloading file from URL=" + url
+                + (offset > 0 ? ", starting at " + offset : "") + "...");
+        HttpGet request = new HttpGet(url);
+        if (offset > 0) {
+            request.addHeader("Range", "bytes=" + offset + "-");
+            if (!validator.isEmpty())
+                request.addHeader("If-Range", validator);
+        }
+        mCurrentRequest = request;
+        if (mAborted) {
+            LOGGER.info("download aborted");
+            return null;
+        }
+
+        // execute request
+        CloseableHttpResponse response;
+        try {
+            response = mHTTPClient.execute(request);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't execute request", ex);
+            return null;
+        }
+
+        int code = response.getStatusLine().getStatusCode();
+        long position;
+        long total;
+        if (code == 200) {
+            position = 0;
+            total = parseLength(response.getFirstHeader("Content-Length"));
+        } else if (code == 206 && offset > 0) {
+            long[] range = parseContentRange(response.getFirstHeader("Content-Range"));
+            if (range == null || range[0] != offset) {
+                LOGGER.warning("invalid content range");
+                IOUtils.closeQuietly(response);
+                return null;
+            }
+            position = offset;
+            total = range[1];
+        } else if (code == 416 && offset > 0) {
+            // partial file is invalid
+            IOUtils.closeQuietly(response);
+            return this.open(url, 0, "");
+        } else {
+            LOGGER.warning("invalid response code: " + code);
+            // client errors (like 404) will not go away
+            mGone = code >= 400 && code < 500 && code != 408 && code != 429;
+            IOUtils.closeQuietly(response);
+            return null;
+        }
+        if (total < 0)
+            LOGGER.warning("unknown file size");
+
+        // get filename
+        String filename = "";
+        Header dispHeader = response.getFirstHeader("Content-Disposition");
+        if (dispHeader == null) {
+            LOGGER.warning("no content header");
+        } else {
+            filename = parseContentDisposition(dispHeader.getValue());
+            // never trust incoming data
+            filename = filename != null ? new File(filename).getName() : "";
+            if (filename.isEmpty())
+                LOGGER.warning("no filename in content: "+dispHeader.getValue());
+        }
+
+        // only a strong validator is valid for If-Range
+        Header eTag = response.getFirstHeader("ETag");
+        Header modified = response.getFirstHeader("Last-Modified");
+        String newValidator = eTag != null && !eTag.getValue().startsWith("W/") ?
+                eTag.getValue() :
+                modified != null ? modified.getValue() : "";
+
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            LOGGER.warning("no entity in response");
+            IOUtils.closeQuietly(response);
+            return null;
+        }
+        InputStream in;
+        try {
+            in = entity.getContent();
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't get content", ex);
+            IOUtils.closeQuietly(response);
+            return null;
+        }
+
+        return new ContentStream(url, response, in, position, total, newValidator, filename);
+    }
+
+    /**
+     * Delete partial downloads in a directory that were not changed for some
+     * time.
+     * @param maxAge max time in milliseconds since last modification
+     */
+    public static void deleteStaleParts(File base, long maxAge) {
+        File[] files = base.listFiles();
+        if (files == null)
+            return;
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.endsWith(PART_EXT) && !name.endsWith(PART_EXT + META_EXT))
+                continue;
+            if (now - file.lastModified() < maxAge)
+                continue;
+            if (file.delete())
+                count++;
+            else
+                LOGGER.warning("can't delete stale partial file: "+file.getAbsolutePath());
+        }
+        if (count > 0)
+            LOGGER.info("deleted stale partial files: "+count);
+    }
+
+    private static void deletePart(File partFile, File metaFile) {
+        if (partFile.exists() && !partFile.delete())
+            LOGGER.warning("can't delete partial file: "+partFile.getAbsolutePath());
+        if (metaFile.exists() && !metaFile.delete())
+            LOGGER.warning("can't delete meta file: "+metaFile.getAbsolutePath());
+    }
+
+    /**
+     * Return the client shared by all downloads and count it as used. The
+     * client is only created again if the private key, bridge certificate or
+     * validation setting changed. The old client is closed when it is not used
+     * anymore.
+     */
+    private static synchronized CloseableHttpClient acquireHTTPClient(PrivateKey privateKey,
+            X509Certificate certificate,
+            boolean validateCertificate) {
+        if (SHARED_CLIENT == null ||
+                !Objects.equals(privateKey, SHARED_KEY) ||
+                !Objects.equals(certificate, SHARED_CERT) ||
+                validateCertificate != SHARED_VALIDATE) {
+            if (SHARED_CLIENT != null) {
+                LOGGER.info("credentials changed, creating new HTTP client");
+                CloseableHttpClient old = SHARED_CLIENT;
+                SHARED_CLIENT = null;
+                closeIfUnused(old);
             }
+            SHARED_CLIENT = createHTTPClient(privateKey, certificate, validateCertificate);
+            if (SHARED_CLIENT == null)
+                return null;
+            SHARED_KEY = privateKey;
+            SHARED_CERT = certificate;
+            SHARED_VALIDATE = validateCertificate;
+        }
+
+        Integer users = SHARED_USERS.get(SHARED_CLIENT);
+        SHARED_USERS.put(SHARED_CLIENT, users == null ? 1 : users + 1);
+        return SHARED_CLIENT;
+    }
+
+    private static synchronized void releaseHTTPClient(CloseableHttpClient client) {
+        if (client == null)
+            return;
+        Integer users = SHARED_USERS.get(client);
+        if (users == null) {
+            LOGGER.warning("HTTP client not in use");
+            return;
         }
+        if (users > 1)
+            SHARED_USERS.put(client, users - 1);
+        else
+            SHARED_USERS.remove(client);
+        if (client != SHARED_CLIENT)
+            closeIfUnused(client);
+    }
+
+    private static void closeIfUnused(CloseableHttpClient client) {
+        if (!SHARED_USERS.containsKey(client))
+            IOUtils.closeQuietly(client);
     }
 
     private static CloseableHttpClient createHTTPClient(PrivateKey privateKey,
@@ -193,11 +476,11 @@ public class DownloadClient {
             boolean validateCertificate) {
         //HttpClientBuilder clientBuilder = HttpClientBuilder.create();
         HttpClientBuilder clientBuilder = HttpClients.custom();
+        SSLContext sslContext;
         try {
-            SSLContext sslContext = TrustUtils.getCustomSSLContext(privateKey,
+            sslContext = TrustUtils.getCustomSSLContext(privateKey,
                     certificate,
                     validateCertificate);
-            clientBuilder.setSslcontext(sslContext);
         }
         catch (KeyStoreException |
                 NoSuchAlgorithmException |
@@ -218,9 +501,22 @@ public class DownloadClient {
         clientBuilder.setDefaultRequestConfig(rcBuilder.build());
 
         // create connection manager
-        //ClientConnectionManager connMgr = new SingleClientConnManager(params, registry);
+        // connections are kept alive and reused by all downloads, TLS
+        // sessions are reused through the shared SSL context
+        Registry<ConnectionSocketFactory> registry =
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", new SSLConnectionSocketFactory(sslContext))
+                .build();
+        PoolingHttpClientConnectionManager connMgr =
+                new PoolingHttpClientConnectionManager(registry);
+        connMgr.setMaxTotal(MAX_CONNECTIONS);
+        connMgr.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        clientBuilder.setConnectionManager(connMgr);
+        // the client certificate would bind each connection to the TLS
+        // session and prevent reuse, all requests use the same credentials
+        clientBuilder.disableConnectionState();
 
-        //return new DefaultHttpClient(connMgr, params);
         return clientBuilder.build();
     }
 
@@ -240,7 +536,200 @@ public class DownloadClient {
         else return null;
     }
 
+    private static long parseLength(Header lengthHeader) {
+        if (lengthHeader == null) {
+            LOGGER.warning("no length header");
+            return -1;
+        }
+        try {
+            return Long.parseLong(lengthHeader.getValue());
+        } catch (NumberFormatException ex) {
+            LOGGER.log(Level.WARNING, "can' parse file size", ex);
+            return -1;
+        }
+    }
+
+    /*
+     * Parse the Content-Range HTTP Header of a partial response, format:
+     * "bytes <first>-<last>/<total>", where total may be "*".
+     * Returns the first byte position and the total length (-1 if unknown),
+     * or null if the header is invalid.
+     */
+    private static long[] parseContentRange(Header rangeHeader) {
+        if (rangeHeader == null)
+            return null;
+
+        Matcher m = CONTENT_RANGE_PATTERN.matcher(rangeHeader.getValue());
+        if (!m.matches())
+            return null;
+        try {
+            long first = Long.parseLong(m.group(1));
+            long total = m.group(3).equals("*") ? -1 : Long.parseLong(m.group(3));
+            return new long[]{first, total};
+        } catch (NumberFormatException ex) {
+            LOGGER.log(Level.WARNING, "can't parse content range", ex);
+            return null;
+        }
+    }
+
     public interface ProgressListener {
         void updateProgress(int percent);
     }
+
+    public interface ContentHandler {
+        /**
+         * Consume the content of a download.
+         * @param in the content stream, closed by the caller
+         * @param filename the (sanitized) name of the downloaded file
+         * @return the absolute path of the written file, or an empty string
+         * if the content could not be handled
+         */
+        String handle(InputStream in, String filename) throws IOException;
+    }
+
+    /**
+     * Content of a response. If the connection fails while reading, the
+     * download is continued with a range request.
+     */
+    private final class ContentStream extends InputStream {
+        private final String mURL;
+        private final long mTotal;
+        private final String mValidator;
+        private final String mFilename;
+
+        private CloseableHttpResponse mResponse;
+        private InputStream mIn;
+        private long mPosition;
+        private int mPercent = -1;
+        private int mRetries = 0;
+
+        private ContentStream(String url,
+                CloseableHttpResponse response,
+                InputStream in,
+                long position,
+                long total,
+                String validator,
+                String filename) {
+            mURL = url;
+            mResponse = response;
+            mIn = in;
+            mPosition = position;
+            mTotal = total;
+            mValidator = validator;
+            mFilename = filename;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = this.read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (true) {
+                try {
+                    int n = mIn.read(b, off, len);
+                    if (n < 0 && mTotal >= 0 && mPosition < mTotal)
+                        throw new EOFException("premature end of content");
+                    if (n > 0) {
+                        mPosition += n;
+                        this.progress();
+                    }
+                    return n;
+                } catch (IOException ex) {
+                    this.resume(ex);
+                }
+            }
+        }
+
+        private void resume(IOException ex) throws IOException {
+            // the total length is needed to know when the content is complete
+            if (mAborted || mTotal < 0 || mRetries >= MAX_RETRIES)
+                throw ex;
+            mRetries++;
+            LOGGER.log(Level.INFO, "connection failed, resuming download, attempt "+mRetries, ex);
+            IOUtils.closeQuietly(mResponse);
+            try {
+                Thread.sleep(RETRY_DELAY * mRetries);
+            } catch (InterruptedException iex) {
+                Thread.currentThread().interrupt();
+                throw ex;
+            }
+            ContentStream next = DownloadClient.this.open(mURL, mPosition, mValidator);
+            if (next == null || next.mPosition != mPosition) {
+                IOUtils.closeQuietly(next);
+                throw ex;
+            }
+            mResponse = next.mResponse;
+            mIn = next.mIn;
+        }
+
+        private void progress() {
+            if (mTotal <= 0)
+                return;
+
+            int percent = (int) (mPosition * 100 / mTotal);
+            if (percent != mPercent) {
+                mPercent = percent;
+                // inform listener
+                mListener.updateProgress(percent);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            mResponse.close();
+        }
+    }
+
+    /** Metadata of a partial download, saved next to the partial file. */
+    private static final class PartMeta {
+        private static final String URL = "url";
+        private static final String VALIDATOR = "validator";
+        private static final String FILENAME = "filename";
+
+        private final String url;
+        private final String validator;
+        private final String filename;
+
+        private PartMeta(String url, String validator, String filename) {
+            this.url = url;
+            this.validator = validator;
+            this.filename = filename;
+        }
+
+        private void save(File file) {
+            Properties props = new Properties();
+            props.setProperty(URL, url);
+            props.setProperty(VALIDATOR, validator);
+            props.setProperty(FILENAME, filename);
+            try (OutputStream out = new FileOutputStream(file)) {
+                props.store(out, null);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "can't save meta file", ex);
+            }
+        }
+
+        private static PartMeta load(File file, String url) {
+            if (!file.exists())
+                return null;
+
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                props.load(in);
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, "can't load meta file", ex);
+                return null;
+            }
+            if (!url.equals(props.getProperty(URL))) {
+                LOGGER.warning("meta file for other URL: "+file.getAbsolutePath());
+                return null;
+            }
+            return new PartMeta(url,
+                    props.getProperty(VALIDATOR, ""),
+                    props.getProperty(FILENAME, ""));
+        }
+    }
 }
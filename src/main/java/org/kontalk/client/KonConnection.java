@@ -51,6 +51,8 @@ public final class KonConnection extends XMPPTCPConnection {
     private static final Logger LOGGER = Logger.getLogger(KonConnection.class.getName());
 
     private static final String RESSOURCE = "Kontalk_Desktop";
+    /** Preferred time in seconds the server keeps a session for resumption. */
+    private static final int RESUMPTION_TIME = 5 * 60;
 
     public KonConnection(EndpointServer server,
             PrivateKey privateKey,
@@ -66,9 +68,10 @@ public final class KonConnection extends XMPPTCPConnection {
         // blacklist PLAIN mechanism
         SASLAuthentication.blacklistSASLMechanism("PLAIN");
 
-        // enable SM without resumption (XEP-0198)
+        // enable SM with resumption (XEP-0198)
         this.setUseStreamManagement(true);
-        this.setUseStreamManagementResumption(false);
+        this.setUseStreamManagementResumption(true);
+        this.setPreferredResumptionTime(RESUMPTION_TIME);
     }
 
     private static XMPPTCPConnectionConfiguration buildConfiguration(
@@ -34,9 +34,11 @@ import org.kontalk.system.Control;
 final class KonConnectionListener implements ConnectionListener {
     private static final Logger LOGGER = Logger.getLogger(KonConnectionListener.class.getName());
 
+    private final Client mClient;
     private final Control mControl;
 
-    KonConnectionListener(Control control) {
+    KonConnectionListener(Client client, Control control) {
+        mClient = client;
         mControl = control;
     }
 
@@ -62,6 +64,7 @@ final class KonConnectionListener implements ConnectionListener {
         LOGGER.log(Level.WARNING, "connection closed on error", ex);
         mControl.setStatus(Control.Status.ERROR);
         mControl.handleException(new KonException(KonException.Error.CLIENT_ERROR, ex));
+        mClient.onConnectionLost();
     }
 
     @Override
@@ -157,9 +157,7 @@ final public class KonMessageListener implements StanzaListener {
         // on success, send a 'received' for a request (XEP-0184)
         DeliveryReceiptRequest request = DeliveryReceiptRequest.from(m);
         if (request != null && success && !ids.xmppID.isEmpty()) {
-            Message received = new Message(m.getFrom(), Message.Type.chat);
-            received.addExtension(new DeliveryReceipt(ids.xmppID));
-            mClient.sendPacket(received);
+            mClient.sendReceipt(m.getFrom(), ids.xmppID);
         }
     }
 
@@ -36,10 +36,12 @@ final class KonRosterListener implements RosterListener {
 
     private final Roster mRoster;
     private final Control mControl;
+    private final StanzaDispatcher mDispatcher;
 
-    KonRosterListener(Roster roster, Control control) {
+    KonRosterListener(Roster roster, Control control, StanzaDispatcher dispatcher) {
         mRoster = roster;
         mControl = control;
+        mDispatcher = dispatcher;
     }
 
     /**
@@ -58,10 +60,17 @@ final class KonRosterListener implements RosterListener {
             }
 
             LOGGER.info("roster entry: "+entry.toString());
-            mControl.addUserFromRoster(entry.getUser(),
-                    entry.getName(),
-                    entry.getType(),
-                    entry.getStatus());
+            final RosterEntry e = entry;
+            // in order with stanzas of user
+            mDispatcher.execute(jid, new Runnable() {
+                @Override
+                public void run() {
+                    mControl.addUserFromRoster(e.getUser(),
+                            e.getName(),
+                            e.getType(),
+                            e.getStatus());
+                }
+            });
         }
     }
 
@@ -75,9 +84,15 @@ final class KonRosterListener implements RosterListener {
             }
 
             LOGGER.info("roster update: "+entry.toString());
-            mControl.setSubscriptionStatus(entry.getUser(),
-                    entry.getType(),
-                    entry.getStatus());
+            final RosterEntry e = entry;
+            mDispatcher.execute(jid, new Runnable() {
+                @Override
+                public void run() {
+                    mControl.setSubscriptionStatus(e.getUser(),
+                            e.getType(),
+                            e.getStatus());
+                }
+            });
         }
     }
 
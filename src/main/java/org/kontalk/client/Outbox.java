@@ -0,0 +1,254 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jivesoftware.smack.packet.Message;
+import org.jivesoftware.smack.packet.Stanza;
+import org.kontalk.model.KonThread;
+import org.kontalk.model.OutMessage;
+
+/**
+ * Queue for outgoing messages.
+ *
+ * Messages are encrypted ahead in background, also while not connected. When
+ * connected, all prepared messages are sent in one burst, in order per
+ * thread. A message that could not be sent is tried again later with
+ * exponential backoff.
+ *
+ * Messages that were queued for sending but dropped because the connection
+ * was lost are added again.
+ *
+ * Messages stay in status PENDING until they are acknowledged by the server;
+ * pending messages are added again from the database after (re-)connecting.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class Outbox {
+    private static final Logger LOGGER = Logger.getLogger(Outbox.class.getName());
+
+    private static final long RETRY_BASE_DELAY = 1000;
+    private static final long RETRY_MAX_DELAY = 60 * 1000;
+
+    private final Client mClient;
+    private final ExecutorService mExecutor;
+    private final Timer mTimer = new Timer("Outbox Timer", true);
+
+    /** Queued messages in order of adding, guarded by itself. */
+    private final Map<OutMessage, Entry> mEntries = new LinkedHashMap<>();
+
+    private final Object mFlushLock = new Object();
+    private boolean mFlushRequested = false;
+
+    Outbox(Client client) {
+        mClient = client;
+        int size = Runtime.getRuntime().availableProcessors();
+        mExecutor = Executors.newFixedThreadPool(size, new ThreadFactory() {
+            private int mCount = 0;
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Outbox Worker " + ++mCount);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Add a message for sending. The message is encrypted in background and
+     * sent as soon as possible.
+     */
+    void add(OutMessage message) {
+        final Entry entry;
+        synchronized (mEntries) {
+            if (mEntries.containsKey(message)) {
+                // already queued, maybe waiting for connection
+                this.requestFlush();
+                return;
+            }
+            entry = new Entry(message);
+            mEntries.put(message, entry);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Optional<Message> optStanza = Optional.empty();
+                try {
+                    optStanza = mClient.createMessageStanza(entry.message);
+                } catch (RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "can't create stanza", ex);
+                }
+                synchronized (mEntries) {
+                    if (!optStanza.isPresent()) {
+                        // error was already handled
+                        mEntries.remove(entry.message);
+                        return;
+                    }
+                    entry.stanza = optStanza.get();
+                }
+                Outbox.this.requestFlush();
+            }
+        });
+    }
+
+    /** Send all prepared messages in background. */
+    void requestFlush() {
+        synchronized (mEntries) {
+            if (mFlushRequested)
+                return;
+            mFlushRequested = true;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Outbox.this.flush();
+            }
+        });
+    }
+
+    private void flush() {
+        // only one flush at a time to keep the order
+        synchronized (mFlushLock) {
+            List<Entry> ready = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            long nextRetry = Long.MAX_VALUE;
+            synchronized (mEntries) {
+                mFlushRequested = false;
+                if (!mClient.isConnected())
+                    // sent after connecting
+                    return;
+
+                // threads with a message that can't be sent yet
+                Set<KonThread> blocked = new HashSet<>();
+                for (Entry entry : mEntries.values()) {
+                    KonThread thread = entry.message.getThread();
+                    if (blocked.contains(thread))
+                        continue;
+
+                    if (entry.stanza == null) {
+                        // still encrypting, flushed again when done
+                        blocked.add(thread);
+                        continue;
+                    }
+                    if (entry.nextAttempt > now) {
+                        blocked.add(thread);
+                        nextRetry = Math.min(nextRetry, entry.nextAttempt);
+                        continue;
+                    }
+                    ready.add(entry);
+                }
+            }
+
+            // send without holding the lock, the writer may block if its
+            // queue is full
+            Set<KonThread> failed = new HashSet<>();
+            List<Entry> sent = new ArrayList<>(ready.size());
+            for (Entry entry : ready) {
+                KonThread thread = entry.message.getThread();
+                if (failed.contains(thread))
+                    continue;
+                if (mClient.sendPacket(entry.stanza, entry))
+                    sent.add(entry);
+                else
+                    failed.add(thread);
+            }
+
+            synchronized (mEntries) {
+                for (Entry entry : sent)
+                    mEntries.remove(entry.message);
+
+                for (Entry entry : ready) {
+                    if (sent.contains(entry) ||
+                            !failed.contains(entry.message.getThread()))
+                        continue;
+                    // first unsent message of thread
+                    failed.remove(entry.message.getThread());
+                    entry.attempts++;
+                    long delay = Math.min(RETRY_MAX_DELAY,
+                            RETRY_BASE_DELAY << Math.min(entry.attempts, 16));
+                    entry.nextAttempt = now + delay;
+                    nextRetry = Math.min(nextRetry, entry.nextAttempt);
+                    LOGGER.info("can't send message, attempt "+entry.attempts
+                            +", retrying in "+delay+" ms");
+                }
+                if (!sent.isEmpty())
+                    LOGGER.info("sent messages: "+sent.size()+", queued: "+mEntries.size());
+            }
+
+            if (nextRetry != Long.MAX_VALUE)
+                this.scheduleFlush(nextRetry - now);
+        }
+    }
+
+    /** Add an entry again that could not be sent. */
+    private void requeue(Entry entry) {
+        synchronized (mEntries) {
+            if (mEntries.containsKey(entry.message))
+                // already added again after reconnect
+                return;
+            entry.nextAttempt = 0;
+            mEntries.put(entry.message, entry);
+        }
+        LOGGER.info("message dropped, queued again");
+        // sent now or after connecting
+        this.requestFlush();
+    }
+
+    private void scheduleFlush(long delay) {
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                Outbox.this.requestFlush();
+            }
+        }, Math.max(0, delay));
+    }
+
+    private final class Entry implements StanzaWriter.DropListener {
+        final OutMessage message;
+        // the stanza to send, null while encrypting
+        Message stanza = null;
+        // number of failed sending attempts
+        int attempts = 0;
+        // earliest time for next attempt
+        long nextAttempt = 0;
+
+        Entry(OutMessage message) {
+            this.message = message;
+        }
+
+        @Override
+        public void dropped(Stanza p) {
+            Outbox.this.requeue(this);
+        }
+    }
+}
@@ -18,6 +18,7 @@
 
 package org.kontalk.client;
 
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.jivesoftware.smack.StanzaListener;
 import org.jivesoftware.smack.roster.Roster;
@@ -53,7 +54,8 @@ public class PresenceListener implements StanzaListener {
 
     @Override
     public void processPacket(Stanza packet) {
-        LOGGER.info("got presence packet: "+packet.toXML());
+        if (LOGGER.isLoggable(Level.FINE))
+            LOGGER.fine("got presence packet: "+packet.toXML());
 
         Presence presence = (Presence) packet;
 
@@ -0,0 +1,136 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jivesoftware.smack.packet.Stanza;
+import org.kontalk.system.Database;
+
+/**
+ * Send delivery receipts (XEP-0184) for incoming messages in batches.
+ *
+ * Receipts are collected for a short time and sent in one burst from a
+ * background thread, after all pending database writes are done. Receipts that
+ * could not be sent are kept until the next flush.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class ReceiptSender {
+    private static final Logger LOGGER = Logger.getLogger(ReceiptSender.class.getName());
+
+    /** Time in milliseconds receipts are collected. */
+    private static final long DELAY = 100;
+    /** Flush without delay if this many receipts are queued. */
+    private static final int MAX_BATCH = 200;
+
+    private final Client mClient;
+    private final Timer mTimer = new Timer("Receipt Sender", true);
+
+    /** Receipts to send in order, guarded by itself. */
+    private final List<Stanza> mQueue = new ArrayList<>();
+    private boolean mScheduled = false;
+    private boolean mImmediate = false;
+
+    /** Adds receipts again that were dropped by the writer. */
+    private final StanzaWriter.DropListener mDropListener =
+            new StanzaWriter.DropListener() {
+        @Override
+        public void dropped(Stanza p) {
+            synchronized (mQueue) {
+                mQueue.add(p);
+                ReceiptSender.this.schedule(DELAY);
+            }
+        }
+    };
+
+    ReceiptSender(Client client) {
+        mClient = client;
+    }
+
+    /**
+     * Queue a receipt for a received message.
+     * @param to JID of the sender of the message
+     * @param receiptID XMPP ID of the message
+     */
+    void add(String to, String receiptID) {
+        Stanza received = TemplateStanza.receipt(to, receiptID);
+        synchronized (mQueue) {
+            mQueue.add(received);
+            if (mQueue.size() >= MAX_BATCH)
+                this.schedule(0);
+            else
+                this.schedule(DELAY);
+        }
+    }
+
+    /** Send queued receipts in background. */
+    void requestFlush() {
+        synchronized (mQueue) {
+            if (!mQueue.isEmpty())
+                this.schedule(0);
+        }
+    }
+
+    private void schedule(long delay) {
+        if (mScheduled && (delay > 0 || mImmediate))
+            return;
+        mScheduled = true;
+        mImmediate = delay == 0;
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    ReceiptSender.this.flush();
+                } catch (RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "can't send receipts", ex);
+                }
+            }
+        }, delay);
+    }
+
+    private void flush() {
+        List<Stanza> receipts;
+        synchronized (mQueue) {
+            mScheduled = false;
+            mImmediate = false;
+            if (mQueue.isEmpty())
+                return;
+            receipts = new ArrayList<>(mQueue);
+            mQueue.clear();
+        }
+
+        // only confirm messages that are saved
+        Database.getInstance().flush();
+
+        int sent = mClient.sendPackets(receipts, mDropListener);
+        LOGGER.info("sent receipts: "+sent+"/"+receipts.size());
+        if (sent == receipts.size())
+            return;
+
+        // not connected, keep the rest for next flush
+        synchronized (mQueue) {
+            mQueue.addAll(0, receipts.subList(sent, receipts.size()));
+        }
+    }
+}
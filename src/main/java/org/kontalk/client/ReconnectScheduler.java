@@ -0,0 +1,201 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Schedules reconnects after the connection was lost or could not be
+ * established.
+ *
+ * The delay grows exponentially with the number of failed attempts and is
+ * randomized over the whole interval ("full jitter"), so that many clients
+ * don't reconnect at the same time after a server restart. A change of the
+ * local network interfaces triggers a reconnect immediately (with a small
+ * jitter).
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class ReconnectScheduler {
+    private static final Logger LOGGER = Logger.getLogger(ReconnectScheduler.class.getName());
+
+    private static final long MIN_DELAY = 1000;
+    private static final long BASE_DELAY = 2000;
+    private static final long MAX_DELAY = 5 * 60 * 1000;
+    private static final long NETWORK_POLL_INTERVAL = 10 * 1000;
+
+    private final Client mClient;
+    private final Timer mTimer = new Timer("Reconnect Timer", true);
+    private final Random mRandom = new Random();
+
+    // all guarded by this
+    private boolean mEnabled = false;
+    private int mAttempts = 0;
+    private TimerTask mPending = null;
+    private String mNetworkState;
+
+    // connect latency metrics
+    private long mConnectStart = 0;
+    private int mConnects = 0;
+    private long mTotalLatency = 0;
+    private long mMaxLatency = 0;
+
+    ReconnectScheduler(Client client) {
+        mClient = client;
+        mNetworkState = networkState();
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                ReconnectScheduler.this.checkNetwork();
+            }
+        }, NETWORK_POLL_INTERVAL, NETWORK_POLL_INTERVAL);
+    }
+
+    /**
+     * Enable or disable automatic reconnects. Disabling cancels a scheduled
+     * reconnect.
+     */
+    synchronized void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+        if (!enabled)
+            this.cancelPending();
+    }
+
+    synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /** Start again with the shortest delay. */
+    synchronized void resetBackoff() {
+        mAttempts = 0;
+    }
+
+    /** A connection attempt was started. */
+    synchronized void connecting() {
+        mConnectStart = System.nanoTime();
+    }
+
+    /** A connection attempt was successful. */
+    synchronized void connected() {
+        this.cancelPending();
+        if (mConnectStart > 0) {
+            long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mConnectStart);
+            mConnects++;
+            mTotalLatency += latency;
+            mMaxLatency = Math.max(mMaxLatency, latency);
+            LOGGER.info("connected after "+mAttempts+" failed attempts in "+latency+" ms"
+                    +" (connects: "+mConnects
+                    +", avg: "+(mTotalLatency / mConnects)+" ms"
+                    +", max: "+mMaxLatency+" ms)");
+            mConnectStart = 0;
+        }
+        mAttempts = 0;
+    }
+
+    /**
+     * A connection attempt failed or the connection was lost. Schedules a
+     * reconnect if enabled.
+     */
+    synchronized void connectionFailed() {
+        mConnectStart = 0;
+        if (!mEnabled || mPending != null)
+            return;
+
+        long cap = Math.min(MAX_DELAY, BASE_DELAY << Math.min(mAttempts, 20));
+        long delay = MIN_DELAY + (long) (mRandom.nextDouble() * cap);
+        mAttempts++;
+        LOGGER.info("reconnecting in "+delay+" ms, attempt "+mAttempts);
+        this.schedule(delay);
+    }
+
+    private void schedule(long delay) {
+        mPending = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (ReconnectScheduler.this) {
+                    if (mPending != this)
+                        return;
+                    mPending = null;
+                    if (!mEnabled)
+                        return;
+                }
+                mClient.queueReconnect();
+            }
+        };
+        mTimer.schedule(mPending, delay);
+    }
+
+    private void cancelPending() {
+        if (mPending != null) {
+            mPending.cancel();
+            mPending = null;
+        }
+    }
+
+    private void checkNetwork() {
+        String state = networkState();
+        synchronized (this) {
+            if (state.equals(mNetworkState))
+                return;
+
+            mNetworkState = state;
+            LOGGER.info("network changed");
+            // only if waiting for reconnect
+            if (!mEnabled || mPending == null)
+                return;
+
+            this.cancelPending();
+            mAttempts = 0;
+            long delay = (long) (mRandom.nextDouble() * MIN_DELAY);
+            LOGGER.info("reconnecting in "+delay+" ms");
+            this.schedule(delay);
+        }
+    }
+
+    /** Names and addresses of all active, non-loopback network interfaces. */
+    private static String networkState() {
+        List<String> entries = new ArrayList<>();
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            while (interfaces != null && interfaces.hasMoreElements()) {
+                NetworkInterface ni = interfaces.nextElement();
+                if (!ni.isUp() || ni.isLoopback())
+                    continue;
+                for (InetAddress address : Collections.list(ni.getInetAddresses()))
+                    entries.add(ni.getName() + "/" + address.getHostAddress());
+            }
+        } catch (SocketException ex) {
+            LOGGER.log(Level.WARNING, "can't get network interfaces", ex);
+        }
+        Collections.sort(entries);
+        return entries.toString();
+    }
+}
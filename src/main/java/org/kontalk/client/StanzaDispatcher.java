@@ -0,0 +1,153 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.StanzaListener;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jxmpp.util.XmppStringUtils;
+
+/**
+ * Process incoming stanzas in background, ordered per conversation.
+ *
+ * Each stanza is assigned to one of a fixed number of lanes by the bare JID of
+ * its sender. A lane is a serial executor: stanzas from one contact are
+ * handled strictly in order of arrival, stanzas from different contacts in
+ * parallel.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class StanzaDispatcher {
+    private static final Logger LOGGER = Logger.getLogger(StanzaDispatcher.class.getName());
+
+    /** Log metrics after this number of tasks. */
+    private static final int STATS_INTERVAL = 500;
+    /** Warn if a lane queue gets longer. */
+    private static final int DEPTH_WARNING = 200;
+
+    private final Lane[] mLanes;
+    private final AtomicLong mTasks = new AtomicLong();
+    private final AtomicLong mTotalWait = new AtomicLong();
+    private final AtomicLong mTotalRun = new AtomicLong();
+
+    StanzaDispatcher() {
+        int size = Math.max(2, Runtime.getRuntime().availableProcessors());
+        mLanes = new Lane[size];
+        for (int i = 0; i < size; i++)
+            mLanes[i] = new Lane(i);
+    }
+
+    /**
+     * Return a listener that passes stanzas to the given listener in the lane
+     * of the sender.
+     * Should be registered as synchronous listener to keep the order of
+     * arrival.
+     */
+    StanzaListener wrap(final StanzaListener listener) {
+        return new StanzaListener() {
+            @Override
+            public void processPacket(final Stanza packet) {
+                StanzaDispatcher.this.execute(packet.getFrom(), new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            listener.processPacket(packet);
+                        } catch (SmackException.NotConnectedException ex) {
+                            LOGGER.log(Level.WARNING, "not connected", ex);
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Run a task in the lane of a contact.
+     * @param jid JID of contact, may be null
+     */
+    void execute(String jid, Runnable task) {
+        String key = jid == null ? "" : XmppStringUtils.parseBareJid(jid);
+        Lane lane = mLanes[(key.hashCode() & Integer.MAX_VALUE) % mLanes.length];
+        lane.submit(task);
+    }
+
+    private void taskDone(long wait, long run) {
+        mTotalWait.addAndGet(wait);
+        mTotalRun.addAndGet(run);
+        long tasks = mTasks.incrementAndGet();
+        if (tasks % STATS_INTERVAL != 0)
+            return;
+
+        StringBuilder depths = new StringBuilder();
+        for (Lane lane : mLanes)
+            depths.append(depths.length() == 0 ? "" : ",").append(lane.mDepth.get());
+        LOGGER.info("stanza tasks: "+tasks
+                +", avg wait: "+TimeUnit.NANOSECONDS.toMicros(mTotalWait.get() / tasks)+" us"
+                +", avg run: "+TimeUnit.NANOSECONDS.toMicros(mTotalRun.get() / tasks)+" us"
+                +", queue depths: "+depths);
+    }
+
+    private final class Lane {
+        private final ExecutorService mExecutor;
+        private final AtomicInteger mDepth = new AtomicInteger();
+        private int mMaxDepth = 0;
+
+        private Lane(final int index) {
+            mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Stanza Lane " + index);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        private void submit(final Runnable task) {
+            final long queued = System.nanoTime();
+            int depth = mDepth.incrementAndGet();
+            if (depth > DEPTH_WARNING && depth > mMaxDepth) {
+                LOGGER.warning("stanza queue is growing: "+depth);
+                mMaxDepth = depth;
+            }
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        task.run();
+                    } catch (RuntimeException ex) {
+                        LOGGER.log(Level.WARNING, "error while handling stanza", ex);
+                    } finally {
+                        mDepth.decrementAndGet();
+                        StanzaDispatcher.this.taskDone(start - queued, System.nanoTime() - start);
+                    }
+                }
+            });
+        }
+    }
+}
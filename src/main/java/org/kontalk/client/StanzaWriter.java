@@ -0,0 +1,175 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.client;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.jivesoftware.smack.SmackException;
+import org.jivesoftware.smack.packet.Stanza;
+
+/**
+ * Outgoing stanza queue with a single writer thread.
+ *
+ * Callers only enqueue, the writer thread passes the stanzas to the current
+ * connection. If the queue is full, important stanzas wait for free space
+ * (backpressure) while unimportant ones (like chat states) are dropped.
+ *
+ * Stanzas that can't be written because the connection is gone are reported
+ * to their {@link DropListener}, if any.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class StanzaWriter implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(StanzaWriter.class.getName());
+
+    private static final int CAPACITY = 1024;
+    /** Log metrics after this number of written stanzas. */
+    private static final int STATS_INTERVAL = 1000;
+
+    private final BlockingQueue<Item> mQueue = new ArrayBlockingQueue<>(CAPACITY);
+
+    private final AtomicLong mWritten = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mBlocked = new AtomicLong();
+    private volatile int mMaxDepth = 0;
+
+    private volatile KonConnection mConn = null;
+
+    StanzaWriter() {
+        Thread thread = new Thread(this, "Stanza Writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void setConnection(KonConnection conn) {
+        mConn = conn;
+    }
+
+    /**
+     * Enqueue a stanza, wait if the queue is full.
+     * @param listener informed if the stanza is not written, or null
+     * @return false if interrupted while waiting, else true
+     */
+    boolean put(Stanza p, DropListener listener) {
+        Item item = new Item(p, listener);
+        if (!mQueue.offer(item)) {
+            mBlocked.incrementAndGet();
+            LOGGER.info("stanza queue full, waiting");
+            try {
+                mQueue.put(item);
+            } catch (InterruptedException ex) {
+                LOGGER.log(Level.WARNING, "interrupted while waiting", ex);
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        this.updateDepth();
+        return true;
+    }
+
+    /**
+     * Enqueue a stanza, drop it if the queue is full.
+     * @return false if the stanza was dropped, else true
+     */
+    boolean offer(Stanza p) {
+        if (!mQueue.offer(new Item(p, null))) {
+            mDropped.incrementAndGet();
+            LOGGER.info("stanza queue full, dropping stanza");
+            return false;
+        }
+        this.updateDepth();
+        return true;
+    }
+
+    private void updateDepth() {
+        int depth = mQueue.size();
+        if (depth > mMaxDepth)
+            mMaxDepth = depth;
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Item item;
+            try {
+                // blocking
+                item = mQueue.take();
+            } catch (InterruptedException ex) {
+                LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
+                return;
+            }
+            Stanza p = item.stanza;
+            KonConnection conn = mConn;
+            if (conn == null) {
+                LOGGER.info("can't send packet, no connection.");
+                this.dropped(item);
+                continue;
+            }
+            try {
+                conn.sendStanza(p);
+            } catch (SmackException.NotConnectedException ex) {
+                LOGGER.info("can't send packet, not connected.");
+                this.dropped(item);
+                continue;
+            }
+            if (LOGGER.isLoggable(Level.FINE))
+                LOGGER.fine("sent packet: "+p.toXML());
+
+            long written = mWritten.incrementAndGet();
+            if (written % STATS_INTERVAL == 0)
+                LOGGER.info("stanzas written: "+written
+                        +", queue depth: "+mQueue.size()
+                        +", max depth: "+mMaxDepth
+                        +", blocked: "+mBlocked.get()
+                        +", dropped: "+mDropped.get());
+        }
+    }
+
+    private void dropped(Item item) {
+        mDropped.incrementAndGet();
+        if (item.listener == null)
+            return;
+        try {
+            item.listener.dropped(item.stanza);
+        } catch (RuntimeException ex) {
+            LOGGER.log(Level.WARNING, "drop listener failed", ex);
+        }
+    }
+
+    interface DropListener {
+        /**
+         * Called from the writer thread if a queued stanza could not be
+         * written because there is no connection.
+         */
+        void dropped(Stanza p);
+    }
+
+    private static final class Item {
+        private final Stanza stanza;
+        private final DropListener listener;
+
+        private Item(Stanza stanza, DropListener listener) {
+            this.stanza = stanza;
+            this.listener = listener;
+        }
+    }
+}
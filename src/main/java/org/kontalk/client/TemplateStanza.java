@@ -0,0 +1,145 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.kontalk.client;
+
+import java.util.Optional;
+import org.jivesoftware.smack.packet.Stanza;
+import org.jivesoftware.smackx.chatstates.ChatState;
+import org.jivesoftware.smackx.chatstates.packet.ChatStateExtension;
+import org.jivesoftware.smackx.receipts.DeliveryReceipt;
+
+/**
+ * Small outgoing message stanza created from a fixed XML template.
+ *
+ * Delivery receipts and chat states are the most frequent stanzas we send.
+ * Instead of building a Smack message with extension elements only the
+ * variable fields (id, 'to', thread) are inserted (escaped) into constant XML
+ * parts when serialized.
+ *
+ * Acknowledgements for these stanzas are ignored by the
+ * {@link AcknowledgedListener}, they are not a {@code Message}.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class TemplateStanza extends Stanza {
+
+    private static final String HEAD_TO = "<message to='";
+    private static final String HEAD_ID = "' id='";
+    private static final String HEAD_END = "' type='chat'>";
+    private static final String THREAD_START = "<thread>";
+    private static final String THREAD_END = "</thread>";
+    private static final String RECEIPT_START = "<" + DeliveryReceipt.ELEMENT
+            + " xmlns='" + DeliveryReceipt.NAMESPACE + "' id='";
+    private static final String RECEIPT_END = "'/>";
+    private static final String CHAT_STATE_END = " xmlns='"
+            + ChatStateExtension.NAMESPACE + "'/>";
+    private static final String TAIL = "</message>";
+
+    /** Pre-built chat state elements, indexed by ordinal. */
+    private static final String[] CHAT_STATES;
+    static {
+        ChatState[] states = ChatState.values();
+        CHAT_STATES = new String[states.length];
+        for (ChatState state : states)
+            CHAT_STATES[state.ordinal()] = "<" + state.name() + CHAT_STATE_END;
+    }
+
+    /** Constant part between head and tail. */
+    private final String mBody;
+    /** Optional variable part between head and body. */
+    private final String mThread;
+    /** Optional variable part in body. */
+    private final String mReceiptID;
+
+    private TemplateStanza(String to, String body, String thread, String receiptID) {
+        this.setTo(to);
+        mBody = body;
+        mThread = thread;
+        mReceiptID = receiptID;
+    }
+
+    /** Delivery receipt (XEP-0184) for a received message. */
+    static TemplateStanza receipt(String to, String receiptID) {
+        return new TemplateStanza(to, RECEIPT_START, null, receiptID);
+    }
+
+    /** Chat state notification (XEP-0085). */
+    static TemplateStanza chatState(String to, Optional<String> optThreadID,
+            ChatState state) {
+        return new TemplateStanza(to,
+                CHAT_STATES[state.ordinal()],
+                optThreadID.orElse(null),
+                null);
+    }
+
+    @Override
+    public CharSequence toXML() {
+        String to = this.getTo();
+        String id = this.getStanzaId();
+        int length = HEAD_TO.length() + HEAD_ID.length() + HEAD_END.length()
+                + mBody.length() + TAIL.length()
+                + (to != null ? to.length() : 0)
+                + (id != null ? id.length() : 0)
+                + (mThread != null ?
+                    THREAD_START.length() + mThread.length() + THREAD_END.length() : 0)
+                + (mReceiptID != null ? mReceiptID.length() + RECEIPT_END.length() : 0);
+        // a few more chars for escaping
+        StringBuilder xml = new StringBuilder(length + 16);
+
+        xml.append(HEAD_TO);
+        appendEscaped(xml, to);
+        xml.append(HEAD_ID);
+        appendEscaped(xml, id);
+        xml.append(HEAD_END);
+        if (mThread != null) {
+            xml.append(THREAD_START);
+            appendEscaped(xml, mThread);
+            xml.append(THREAD_END);
+        }
+        xml.append(mBody);
+        if (mReceiptID != null) {
+            appendEscaped(xml, mReceiptID);
+            xml.append(RECEIPT_END);
+        }
+        xml.append(TAIL);
+        return xml;
+    }
+
+    @Override
+    public String toString() {
+        return this.toXML().toString();
+    }
+
+    private static void appendEscaped(StringBuilder xml, String text) {
+        if (text == null)
+            return;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<': xml.append("&lt;"); break;
+                case '>': xml.append("&gt;"); break;
+                case '&': xml.append("&amp;"); break;
+                case '\'': xml.append("&apos;"); break;
+                case '"': xml.append("&quot;"); break;
+                default: xml.append(c);
+            }
+        }
+    }
+}
@@ -18,12 +18,15 @@
 
 package org.kontalk.crypto;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -34,10 +37,13 @@ import java.util.Base64;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.Iterator;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.http.util.EncodingUtils;
 import org.bouncycastle.bcpg.HashAlgorithmTags;
 import org.bouncycastle.openpgp.PGPCompressedData;
@@ -65,6 +71,7 @@ import org.bouncycastle.openpgp.operator.bc.BcPublicKeyDataDecryptorFactory;
 import org.bouncycastle.openpgp.operator.bc.BcPublicKeyKeyEncryptionMethodGenerator;
 import org.jivesoftware.smack.packet.Message;
 import org.kontalk.system.Downloader;
+import org.kontalk.client.DownloadClient;
 import org.kontalk.client.KonMessageListener;
 import org.kontalk.crypto.PGPUtils.PGPCoderKey;
 import org.kontalk.model.InMessage;
@@ -132,6 +139,18 @@ public final class Coder {
 
     /** Buffer size for encryption. It should always be a power of 2. */
     private static final int BUFFER_SIZE = 1 << 8;
+    /** Buffer size for streaming (attachment) data. */
+    private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    private static final ThreadLocal<byte[]> STREAM_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[STREAM_BUFFER_SIZE];
+        }
+    };
+
+    /** Parsed public keys by user ID, only valid for the same fingerprint. */
+    private static final Map<Integer, PGPCoderKey> KEY_CACHE = new ConcurrentHashMap<>();
 
     private static class KeysResult {
         PersonalKey myKey = null;
@@ -259,24 +278,50 @@ public final class Coder {
         return Optional.of(out.toByteArray());
     }
 
+    /**
+     * Result of decrypting the body of a message, not applied to the message.
+     */
+    public static final class InDecryption {
+        private final EnumSet<Coder.Error> mErrors;
+        private final Signing mSigning;
+        private final MessageContent mContent;
+
+        private InDecryption(EnumSet<Coder.Error> errors, Signing signing,
+                MessageContent content) {
+            mErrors = errors;
+            mSigning = signing;
+            mContent = content;
+        }
+    }
+
     /**
      * Decrypt and verify the body of a message. Sets the encryption and signing
      * status of the message and errors that may occur are saved to the message.
      * @param message
      */
     public static void processInMessage(InMessage message) {
+        Optional<InDecryption> optResult = decryptInMessage(message);
+        if (optResult.isPresent())
+            applyInDecryption(message, optResult.get());
+    }
+
+    /**
+     * Decrypt and verify the body of a message without changing the message.
+     * Thread-safe, the result can be applied later.
+     * @return the decryption result, empty if message is not encrypted
+     */
+    public static Optional<InDecryption> decryptInMessage(InMessage message) {
         // signing requires also encryption
         if (!message.getCoderStatus().isEncrypted()) {
             LOGGER.warning("message not encrypted");
-            return;
+            return Optional.empty();
         }
         LOGGER.info("decrypting encrypted message...");
 
         // get keys
         KeysResult keys = getKeys(message.getUser());
         if (keys.myKey == null || keys.otherKey == null) {
-            message.setSecurityErrors(keys.errors);
-            return;
+            return Optional.of(new InDecryption(keys.errors, null, null));
         }
 
         // decrypt
@@ -292,7 +337,6 @@ public final class Coder {
                 keys.myKey,
                 keys.otherKey.signKey);
         EnumSet<Coder.Error> allErrors = decResult.errors;
-        message.setSigning(decResult.signing);
 
         // parse
         ParsingResult parsingResult = null;
@@ -307,13 +351,27 @@ public final class Coder {
             allErrors.addAll(parsingResult.errors);
         }
 
+        MessageContent content = parsingResult != null ?
+                parsingResult.content :
+                null;
+        return Optional.of(new InDecryption(allErrors, decResult.signing, content));
+    }
+
+    /**
+     * Set the encryption and signing status and errors of a decryption to the
+     * message.
+     */
+    public static void applyInDecryption(InMessage message, InDecryption result) {
+        if (result.mSigning != null)
+            message.setSigning(result.mSigning);
+
         // set errors
-        message.setSecurityErrors(allErrors);
+        message.setSecurityErrors(result.mErrors);
 
-        if (parsingResult != null && parsingResult.content != null) {
+        if (result.mContent != null) {
             // everything went better than expected
             LOGGER.info("decryption successful");
-            message.setDecryptedContent(parsingResult.content);
+            message.setDecryptedContent(result.mContent);
         } else {
             LOGGER.warning("decryption failed");
         }
@@ -324,8 +382,10 @@ public final class Coder {
      * signing status of the message attachment and errors that may occur are
      * saved to the message.
      * @param message
+     * @param listener informed about the decryption progress in percent
      */
-    public static void processAttachment(InMessage message) {
+    public static void processAttachment(InMessage message,
+            DownloadClient.ProgressListener listener) {
         if (!message.getContent().getAttachment().isPresent()) {
             LOGGER.warning("no attachment in message");
             return;
@@ -348,7 +408,10 @@ public final class Coder {
 
         InputStream encryptedStream;
         try {
-            encryptedStream = new FileInputStream(inFile);
+            encryptedStream = new ProgressInputStream(
+                    new BufferedInputStream(new FileInputStream(inFile), STREAM_BUFFER_SIZE),
+                    inFile.length(),
+                    listener);
         } catch (FileNotFoundException ex) {
             LOGGER.log(Level.WARNING,
                     "attachment file not found: "+inFile.getAbsolutePath(),
@@ -358,46 +421,109 @@ public final class Coder {
 
         LOGGER.info("decrypting encrypted attachment...");
 
+        File outFile = decryptedFile(baseDir, inFile.getName());
+        boolean success = decryptAttachment(message, encryptedStream, outFile);
+        if (!success)
+            return;
+
+        // set new filename
+        message.setDecryptedAttachment(outFile.getName());
+        LOGGER.info("attachment decryption successful");
+    }
+
+    /**
+     * Decrypt and verify an encrypted attachment while it is read from a
+     * stream (e.g. while downloading). Only the decrypted file is written.
+     * Security errors and signing are saved to the message; the new filename
+     * is not.
+     * @param message the message with the encrypted attachment
+     * @param encryptedStream stream of the encrypted file
+     * @param fileName name of the encrypted file
+     * @return the absolute path of the decrypted file, or an empty string if
+     * decryption failed
+     */
+    public static String processAttachmentStream(InMessage message,
+            InputStream encryptedStream,
+            String fileName) {
+        LOGGER.info("decrypting encrypted attachment stream...");
+
+        File baseDir = Downloader.getInstance().getBaseDir();
+        File outFile = decryptedFile(baseDir, fileName);
+        boolean success = decryptAttachment(message,
+                new BufferedInputStream(encryptedStream, STREAM_BUFFER_SIZE),
+                outFile);
+        if (!success)
+            return "";
+
+        LOGGER.info("attachment decryption successful");
+        return outFile.getAbsolutePath();
+    }
+
+    /**
+     * Return if the keys for decrypting (and verifying) an attachment of a
+     * message are available.
+     */
+    public static boolean canDecrypt(InMessage message) {
+        KeysResult keys = getKeys(message.getUser());
+        return keys.myKey != null && keys.otherKey != null;
+    }
+
+    private static File decryptedFile(File baseDir, String encryptedName) {
+        String base = FilenameUtils.getBaseName(encryptedName);
+        String ext = FilenameUtils.getExtension(encryptedName);
+        return new File(baseDir, base + "_dec." + ext);
+    }
+
+    /** Decrypt to outFile, the encrypted stream is always closed. */
+    private static boolean decryptAttachment(InMessage message,
+            InputStream encryptedStream,
+            File outFile) {
         // get keys
         KeysResult keys = getKeys(message.getUser());
         if (keys.myKey == null || keys.otherKey == null) {
             message.setAttachmentErrors(keys.errors);
-            return;
+            IOUtils.closeQuietly(encryptedStream);
+            return false;
         }
 
         // open out stream
-        String base = FilenameUtils.getBaseName(inFile.getName());
-        String ext = FilenameUtils.getExtension(inFile.getName());
-        File outFile = new File(baseDir, base + "_dec." + ext);
         if (outFile.exists()) {
             LOGGER.warning("encrypted file already exists: "+outFile.getAbsolutePath());
-            return;
+            IOUtils.closeQuietly(encryptedStream);
+            return false;
         }
-        FileOutputStream outStream;
+        OutputStream outStream;
         try {
-            outStream = new FileOutputStream(outFile);
+            outStream = new BufferedOutputStream(new FileOutputStream(outFile),
+                    STREAM_BUFFER_SIZE);
         } catch (IOException ex) {
             LOGGER.log(Level.WARNING, "can't open output file", ex);
-            return;
+            IOUtils.closeQuietly(encryptedStream);
+            return false;
         }
 
         // decrypt
-        DecryptionResult decResult = decryptAndVerify(encryptedStream,
-                outStream,
-                keys.myKey,
-                keys.otherKey.signKey);
+        DecryptionResult decResult;
+        try {
+            decResult = decryptAndVerify(encryptedStream,
+                    outStream,
+                    keys.myKey,
+                    keys.otherKey.signKey);
+        } finally {
+            IOUtils.closeQuietly(encryptedStream);
+            IOUtils.closeQuietly(outStream);
+        }
         message.setAttachmentErrors(keys.errors);
         message.setAttachmentSigning(decResult.signing);
 
         // check for errors
         if (!decResult.decrypted) {
             LOGGER.info("attachment decryption failed");
-            return;
+            if (!outFile.delete())
+                LOGGER.warning("can't delete partial file: "+outFile.getAbsolutePath());
+            return false;
         }
-
-        // set new filename
-        message.setDecryptedAttachment(outFile.getName());
-        LOGGER.info("attachment decryption successful");
+        return true;
     }
 
     private static KeysResult getKeys(User user) {
@@ -417,6 +543,12 @@ public final class Coder {
             return result;
         }
 
+        PGPCoderKey cachedKey = KEY_CACHE.get(user.getID());
+        if (cachedKey != null && cachedKey.fingerprint.equals(user.getFingerprint())) {
+            result.otherKey = cachedKey;
+            return result;
+        }
+
         Optional<PGPCoderKey> optKey = PGPUtils.readPublicKey(user.getKey());
         if (!optKey.isPresent()) {
             LOGGER.warning("can't get sender key");
@@ -424,10 +556,19 @@ public final class Coder {
             return result;
         }
         result.otherKey = optKey.get();
+        KEY_CACHE.put(user.getID(), result.otherKey);
 
         return result;
     }
 
+    /**
+     * Remove the parsed public key of a user from cache. Call this when the
+     * key of the user changed.
+     */
+    public static void invalidateKey(User user) {
+        KEY_CACHE.remove(user.getID());
+    }
+
     /**
      * Decrypt, verify and write input stream to output stream.
      * Output stream is closed.
@@ -529,11 +670,13 @@ public final class Coder {
 
             PGPLiteralData ld = (PGPLiteralData) object;
             InputStream unc = ld.getInputStream();
-            int ch;
-            while ((ch = unc.read()) >= 0) {
-                outStream.write(ch);
+            byte[] buf = STREAM_BUFFER.get();
+            int len;
+            while ((len = unc.read(buf)) >= 0) {
+                outStream.write(buf, 0, len);
+                // signature is verified incrementally
                 if (ops != null)
-                    ops.update((byte) ch);
+                    ops.update(buf, 0, len);
             }
             outStream.close();
             result.decrypted = true;
@@ -650,4 +793,46 @@ public final class Coder {
         result.content = decryptedContent;
         return result;
     }
+
+    /** Input stream that reports how much of a known length was read. */
+    private static final class ProgressInputStream extends FilterInputStream {
+        private final long mLength;
+        private final DownloadClient.ProgressListener mListener;
+        private long mRead = 0;
+        private int mPercent = -1;
+
+        private ProgressInputStream(InputStream in, long length,
+                DownloadClient.ProgressListener listener) {
+            super(in);
+            mLength = length;
+            mListener = listener;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0)
+                this.progress(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0)
+                this.progress(n);
+            return n;
+        }
+
+        private void progress(int n) {
+            mRead += n;
+            if (mLength <= 0)
+                return;
+            int percent = (int) Math.min(100, mRead * 100 / mLength);
+            if (percent != mPercent) {
+                mPercent = percent;
+                mListener.updateProgress(percent);
+            }
+        }
+    }
 }
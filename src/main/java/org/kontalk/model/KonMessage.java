@@ -80,6 +80,7 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
     public static final String COL_COD_ERR = "coder_errors";
     public static final String COL_SERV_ERR = "server_error";
     public static final String COL_SERV_DATE = "server_date";
+    public static final String COL_CONTENT_BIN = "content_bin";
     public static final String CREATE_TABLE = "( " +
             "_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
             COL_THREAD_ID + " INTEGER NOT NULL, " +
@@ -97,7 +98,8 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
             COL_DATE + " INTEGER NOT NULL, " +
             // enum, server receipt status
             COL_REC_STAT + " INTEGER NOT NULL, " +
-            // message content in JSON format
+            // message content in JSON format, empty if binary content is
+            // present (legacy)
             COL_CONTENT + " TEXT NOT NULL, " +
             // enum, determines if content is encrypted
             COL_ENCR_STAT + " INTEGER NOT NULL, " +
@@ -110,6 +112,8 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
             COL_SERV_ERR + " TEXT, " +
             // unix time, transmission/delay timestamp
             COL_SERV_DATE + " INTEGER, " +
+            // message content in binary format
+            COL_CONTENT_BIN + " BLOB, " +
             // if this combinations is equal we consider messages to be equal
             // (see .equals())
             "UNIQUE (direction, jid, xmpp_id, date), " +
@@ -117,6 +121,19 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
             "FOREIGN KEY (user_id) REFERENCES "+User.TABLE+" (_id) " +
             ")";
 
+    /** Indices for frequent queries (in addition to the UNIQUE constraint). */
+    public static final String[] CREATE_INDICES = {
+        // thread messages, paged by date (row ID is implicitly included)
+        "CREATE INDEX IF NOT EXISTS " + TABLE + "_thread_date ON " + TABLE +
+                " (" + COL_THREAD_ID + ", " + COL_DATE + ")",
+        // message lookup for receipts and errors
+        "CREATE INDEX IF NOT EXISTS " + TABLE + "_xmpp_id ON " + TABLE +
+                " (" + COL_XMPP_ID + ")",
+        // pending messages
+        "CREATE INDEX IF NOT EXISTS " + TABLE + "_receipt_status ON " + TABLE +
+                " (" + COL_REC_STAT + ")"
+    };
+
     private int mID;
     private final KonThread mThread;
     private final Direction mDir;
@@ -137,6 +154,9 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
 
     protected ServerError mServerError;
 
+    /** Text in search index, null if not indexed. */
+    private String mIndexedText = null;
+
     protected KonMessage(Builder builder) {
         mID = builder.mID;
         mThread = builder.mThread;
@@ -164,6 +184,9 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
 
         if (mID < 0)
             this.save();
+        else
+            // loaded from database, index is already up to date
+            mIndexedText = MessageSearch.indexText(this);
     }
 
     /**
@@ -236,13 +259,16 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
         Database db = Database.getInstance();
         Map<String, Object> set = new HashMap<>();
         set.put(COL_REC_STAT, mReceiptStatus);
-        set.put(COL_CONTENT, mContent.toJSONString());
+        set.put(COL_CONTENT, "");
+        set.put(COL_CONTENT_BIN, mContent.toBytes());
         set.put(COL_ENCR_STAT, mCoderStatus.getEncryption());
         set.put(COL_SIGN_STAT, mCoderStatus.getSigning());
         set.put(COL_COD_ERR, mCoderStatus.getErrors());
         set.put(COL_SERV_ERR, mServerError.toJSON());
         set.put(COL_SERV_DATE, mServerDate);
-        db.execUpdate(TABLE, set, mID);
+        db.execUpdateDeferred(TABLE, set, mID);
+
+        this.updateIndex();
     }
 
     private void insert() {
@@ -261,13 +287,14 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
         values.add(mDate);
         values.add(mReceiptStatus);
         // i simply don't like to save all possible content explicitly in the
-        // database, so we use JSON here
-        values.add(mContent.toJSONString());
+        // database, so we use a binary blob (see below)
+        values.add("");
         values.add(mCoderStatus.getEncryption());
         values.add(mCoderStatus.getSigning());
         values.add(mCoderStatus.getErrors());
         values.add(mServerError.toJSON());
         values.add(mServerDate);
+        values.add(mContent.toBytes());
 
         int id = db.execInsert(TABLE, values);
         if (id <= 0) {
@@ -276,11 +303,24 @@ public class KonMessage extends Observable implements Comparable<KonMessage> {
             return;
         }
         mID = id;
+
+        this.updateIndex();
+    }
+
+    private void updateIndex() {
+        String text = MessageSearch.indexText(this);
+        if (text == null || text.equals(mIndexedText))
+            return;
+        MessageSearch.index(mID, text);
+        mIndexedText = text;
     }
 
     boolean delete() {
         Database db = Database.getInstance();
-        return db.execDelete(TABLE, mID);
+        boolean deleted = db.execDelete(TABLE, mID);
+        if (deleted)
+            MessageSearch.remove(mID);
+        return deleted;
     }
 
     protected synchronized void changed(Object arg) {
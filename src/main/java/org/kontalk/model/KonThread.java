@@ -21,6 +21,7 @@ package org.kontalk.model;
 import java.awt.Color;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -217,6 +218,13 @@ public final class KonThread extends Observable implements Comparable<KonThread>
         return added;
     }
 
+    /**
+     * Inform observers that multiple messages of this thread changed.
+     */
+    public void setMessagesChanged(Set<KonMessage> messages) {
+        this.changed(new MessagesChanged(messages));
+    }
+
     public void setChatState(User user, ChatState chatState) {
         KonChatState state = mUserMap.get(user);
         if (state == null) {
@@ -234,7 +242,7 @@ public final class KonThread extends Observable implements Comparable<KonThread>
         set.put(COL_READ, mRead);
         set.put(COL_VIEW_SET, mViewSettings.toJSONString());
 
-        db.execUpdate(TABLE, set, mID);
+        db.execUpdateDeferred(TABLE, set, mID);
 
         // get receiver for this thread
         Map<Integer, Integer> dbReceiver = this.loadReceiver();
@@ -272,20 +280,13 @@ public final class KonThread extends Observable implements Comparable<KonThread>
         Database db = Database.getInstance();
         String where = "thread_id == " + mID;
         Map<Integer, Integer> dbReceiver = new HashMap<>();
-        ResultSet resultSet;
-        try {
-            resultSet = db.execSelectWhereInsecure(TABLE_RECEIVER, where);
-        } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't get receiver from db", ex);
-            return dbReceiver;
-        }
-        try {
+        // result set must be closed, it holds a reader connection
+        try (ResultSet resultSet = db.execSelectWhereInsecure(TABLE_RECEIVER, where)) {
             while (resultSet.next()) {
                 dbReceiver.put(resultSet.getInt("user_id"), resultSet.getInt("_id"));
             }
-            resultSet.close();
         } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't get receiver", ex);
+            LOGGER.log(Level.WARNING, "can't get receiver from db", ex);
         }
         return dbReceiver;
     }
@@ -361,6 +362,15 @@ public final class KonThread extends Observable implements Comparable<KonThread>
         }
     }
 
+    /** Bulk change of messages in thread. */
+    public static class MessagesChanged {
+        public final Set<KonMessage> messages;
+
+        private MessagesChanged(Set<KonMessage> messages) {
+            this.messages = Collections.unmodifiableSet(messages);
+        }
+    }
+
     public static class ViewSettings {
         private static final String JSON_BG_COLOR = "bg_color";
         private static final String JSON_IMAGE_PATH = "img";
@@ -18,7 +18,18 @@
 
 package org.kontalk.model;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.logging.Level;
@@ -26,6 +37,7 @@ import java.util.logging.Logger;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONValue;
 import org.kontalk.crypto.Coder;
+import org.kontalk.system.Database;
 import org.kontalk.util.EncodingUtils;
 
 /**
@@ -50,6 +62,14 @@ public class MessageContent {
     private static final String JSON_ENC_CONTENT = "encrypted_content";
     private static final String JSON_DEC_CONTENT = "decrypted_content";
 
+    /** Version of binary format. */
+    private static final byte BIN_VERSION = 1;
+    private static final int BIN_ATTACHMENT = 1;
+    private static final int BIN_DEC_CONTENT = 1 << 1;
+
+    /** Number of messages converted in one transaction. */
+    private static final int CONVERT_CHUNK = 500;
+
     public MessageContent(String plainText) {
         this(plainText, Optional.<Attachment>empty(), "");
     }
@@ -140,6 +160,138 @@ public class MessageContent {
         return json.toJSONString();
     }
 
+    /**
+     * Encode content in a compact binary format: a version byte followed by
+     * length-prefixed fields, without any nested encoding.
+     */
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(BIN_VERSION);
+            this.write(out);
+        } catch (IOException ex) {
+            // not possible for in-memory stream
+            throw new IllegalStateException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        int flags = 0;
+        if (mOptAttachment.isPresent())
+            flags |= BIN_ATTACHMENT;
+        if (mOptDecryptedContent.isPresent())
+            flags |= BIN_DEC_CONTENT;
+        out.writeByte(flags);
+        writeString(out, mPlainText);
+        writeString(out, mEncryptedContent);
+        if (mOptAttachment.isPresent())
+            mOptAttachment.get().write(out);
+        if (mOptDecryptedContent.isPresent())
+            mOptDecryptedContent.get().write(out);
+    }
+
+    static MessageContent fromBytes(byte[] binContent) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(binContent))) {
+            byte version = in.readByte();
+            if (version != BIN_VERSION) {
+                LOGGER.warning("unknown binary content version: "+version);
+                return new MessageContent("");
+            }
+            return read(in);
+        } catch (IOException ex) {
+            LOGGER.log(Level.WARNING, "can't parse binary message content", ex);
+            return new MessageContent("");
+        }
+    }
+
+    private static MessageContent read(DataInputStream in) throws IOException {
+        int flags = in.readByte();
+        String plainText = readString(in);
+        String encryptedContent = readString(in);
+        Optional<Attachment> optAttachment = (flags & BIN_ATTACHMENT) != 0 ?
+                Optional.of(Attachment.read(in)) :
+                Optional.<Attachment>empty();
+        Optional<MessageContent> decryptedContent = (flags & BIN_DEC_CONTENT) != 0 ?
+                Optional.of(read(in)) :
+                Optional.<MessageContent>empty();
+        return new MessageContent(plainText,
+                optAttachment,
+                encryptedContent,
+                decryptedContent);
+    }
+
+    /**
+     * Create content from database columns. Content in binary format is
+     * preferred, JSON is only used for rows not saved or converted since the
+     * binary format was introduced (see convertJSONAsync()).
+     */
+    static MessageContent fromDatabase(byte[] binContent, String jsonContent) {
+        return binContent != null ?
+                fromBytes(binContent) :
+                fromJSONString(jsonContent);
+    }
+
+    /**
+     * Convert content of all messages still saved as JSON to the binary
+     * format. Runs in background.
+     */
+    public static void convertJSONAsync() {
+        Thread thread = new Thread("Content Converter") {
+            @Override
+            public void run() {
+                MessageContent.convertJSON();
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private static void convertJSON() {
+        Database db = Database.getInstance();
+        // rows saved in the meantime are not overwritten
+        String update = "UPDATE " + KonMessage.TABLE + " SET " +
+                KonMessage.COL_CONTENT_BIN + " = ?, " + KonMessage.COL_CONTENT +
+                " = '' WHERE _id == ? AND " + KonMessage.COL_CONTENT_BIN + " IS NULL";
+        int lastID = 0;
+        int count = 0;
+        while (true) {
+            List<List<Object>> rows = new ArrayList<>(CONVERT_CHUNK);
+            String where = KonMessage.COL_CONTENT_BIN + " IS NULL AND _id > " + lastID;
+            try (ResultSet resultSet = db.execSelectWhereInsecure(KonMessage.TABLE,
+                    where, "_id", CONVERT_CHUNK)) {
+                while (resultSet.next()) {
+                    lastID = resultSet.getInt("_id");
+                    MessageContent content = fromJSONString(
+                            resultSet.getString(KonMessage.COL_CONTENT));
+                    rows.add(Arrays.<Object>asList(content.toBytes(), lastID));
+                }
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't load messages for converting", ex);
+                return;
+            }
+
+            if (rows.isEmpty() || !db.execBatchInsecure(update, rows))
+                break;
+            count += rows.size();
+        }
+        if (count > 0)
+            LOGGER.info("converted message contents: "+count);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
     static MessageContent fromJSONString(String jsonContent) {
         Object obj = JSONValue.parse(jsonContent);
         try {
@@ -228,6 +380,13 @@ public class MessageContent {
             return mMimeType;
         }
 
+        /**
+         * Return size of (decrypted) file in bytes or -1 if unknown.
+         */
+        public long getLength() {
+            return mLength;
+        }
+
        /**
         * Return name of file or empty string if file wasn't downloaded yet.
         */
@@ -285,6 +444,32 @@ public class MessageContent {
             return json.toJSONString();
         }
 
+        private void write(DataOutputStream out) throws IOException {
+            writeString(out, mURL);
+            writeString(out, mMimeType);
+            out.writeLong(mLength);
+            writeString(out, mFileName);
+            out.writeByte(mCoderStatus.getEncryption().ordinal());
+            out.writeByte(mCoderStatus.getSigning().ordinal());
+            out.writeInt(EncodingUtils.enumSetToInt(mCoderStatus.getErrors()));
+        }
+
+        private static Attachment read(DataInputStream in) throws IOException {
+            String url = readString(in);
+            String mimeType = readString(in);
+            long length = in.readLong();
+            String fileName = readString(in);
+            Coder.Encryption encryption = Coder.Encryption.values()[in.readByte()];
+            Coder.Signing signing = Coder.Signing.values()[in.readByte()];
+            EnumSet<Coder.Error> errors = EncodingUtils.intToEnumSet(Coder.Error.class, in.readInt());
+            return new Attachment(
+                    url,
+                    mimeType,
+                    length,
+                    fileName,
+                    new CoderStatus(encryption, signing, errors));
+        }
+
         static Optional<Attachment> fromJSONString(String jsonAttachment) {
             Object obj = JSONValue.parse(jsonAttachment);
             try {
@@ -0,0 +1,63 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.model;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Global index of all loaded outgoing messages by XMPP ID.
+ * Used for finding the message of receipts and errors.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class MessageIndex {
+
+    private static final MessageIndex INSTANCE = new MessageIndex();
+
+    private final Map<String, OutMessage> mMap = new HashMap<>();
+
+    private MessageIndex() {
+    }
+
+    synchronized void add(KonMessage message) {
+        if (!(message instanceof OutMessage) || message.getXMPPID().isEmpty())
+            return;
+
+        // newest message wins
+        OutMessage old = mMap.get(message.getXMPPID());
+        if (old == null || old.getID() < message.getID())
+            mMap.put(message.getXMPPID(), (OutMessage) message);
+    }
+
+    synchronized void remove(KonMessage message) {
+        // only if this instance is indexed
+        if (mMap.get(message.getXMPPID()) == message)
+            mMap.remove(message.getXMPPID());
+    }
+
+    synchronized Optional<OutMessage> get(String xmppID) {
+        return Optional.ofNullable(mMap.get(xmppID));
+    }
+
+    static MessageIndex getInstance() {
+        return INSTANCE;
+    }
+}
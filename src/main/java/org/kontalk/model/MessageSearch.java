@@ -0,0 +1,227 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang.StringUtils;
+import org.kontalk.crypto.Coder;
+import org.kontalk.system.Database;
+
+/**
+ * Full-text search over the text of all messages.
+ *
+ * The index is an FTS4 table that uses the message ID as document ID.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public final class MessageSearch {
+    private static final Logger LOGGER = Logger.getLogger(MessageSearch.class.getName());
+
+    public static final String TABLE = "messages_fts";
+    private static final String COL_DOC_ID = "docid";
+    private static final String COL_TEXT = "text";
+    public static final String CREATE_TABLE = "USING fts4(" + COL_TEXT + ")";
+
+    private static final List<String> COLUMNS = Arrays.asList(COL_DOC_ID, COL_TEXT);
+
+    /** Number of messages indexed in one transaction when filling the index. */
+    private static final int INDEX_CHUNK = 500;
+
+    private MessageSearch() {}
+
+    /** One search result. */
+    public static final class Hit {
+        public final int messageID;
+        public final int threadID;
+        public final long date;
+        /** Number of different query terms matched in message. */
+        public final int score;
+
+        private Hit(int messageID, int threadID, long date, int score) {
+            this.messageID = messageID;
+            this.threadID = threadID;
+            this.date = date;
+            this.score = score;
+        }
+    }
+
+    private static final Comparator<Hit> RANKING = new Comparator<Hit>() {
+        @Override
+        public int compare(Hit h1, Hit h2) {
+            int scoreComp = Integer.compare(h2.score, h1.score);
+            return scoreComp != 0 ? scoreComp : Long.compare(h2.date, h1.date);
+        }
+    };
+
+    /**
+     * Search the text of all messages. A message matches if any word in the
+     * query matches the beginning of a word in the message. Hits are ranked
+     * by the number of different query words matched, then by date.
+     * @return at most 'limit' hits, best first
+     */
+    public static List<Hit> search(String query, int limit) {
+        List<String> terms = new ArrayList<>();
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty())
+                terms.add("\"" + word + "*\"");
+        }
+        if (terms.isEmpty() || limit <= 0)
+            return Collections.emptyList();
+
+        String select = "SELECT m._id, m." + KonMessage.COL_THREAD_ID +
+                ", m." + KonMessage.COL_DATE + ", matchinfo(" + TABLE + ", 'x')" +
+                " FROM " + TABLE + " JOIN " + KonMessage.TABLE + " m" +
+                " ON m._id == " + TABLE + ".docid" +
+                " WHERE " + TABLE + " MATCH " +
+                Database.quote(StringUtils.join(terms, " OR "));
+
+        // all matches are ranked, only the best are kept (worst on top)
+        PriorityQueue<Hit> best = new PriorityQueue<>(limit, Collections.reverseOrder(RANKING));
+        Database db = Database.getInstance();
+        try (ResultSet resultSet = db.execSelectInsecure(select)) {
+            while (resultSet.next()) {
+                Hit hit = new Hit(resultSet.getInt(1),
+                        resultSet.getInt(2),
+                        resultSet.getLong(3),
+                        matchedTerms(resultSet.getBytes(4), terms.size()));
+                if (best.size() < limit) {
+                    best.add(hit);
+                } else if (RANKING.compare(hit, best.peek()) < 0) {
+                    best.poll();
+                    best.add(hit);
+                }
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't search messages", ex);
+            return Collections.emptyList();
+        }
+
+        List<Hit> hits = new ArrayList<>(best);
+        Collections.sort(hits, RANKING);
+        return hits;
+    }
+
+    /**
+     * Count the different query terms found in a row from the result of the
+     * FTS matchinfo() function with format 'x'. For each term (and the only
+     * column) it has three 32-bit integers in native byte order, the first is
+     * the number of hits in this row.
+     */
+    private static int matchedTerms(byte[] matchinfo, int terms) {
+        if (matchinfo == null)
+            return 0;
+        ByteBuffer buffer = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder());
+        int matched = 0;
+        for (int i = 0; i < terms && (i * 3 + 1) * 4 <= matchinfo.length; i++) {
+            if (buffer.getInt(i * 3 * 4) > 0)
+                matched++;
+        }
+        return matched;
+    }
+
+    /**
+     * Get the text of a message that is indexed. Null if message is still
+     * encrypted.
+     */
+    static String indexText(KonMessage message) {
+        return message.getCoderStatus().isEncrypted() ?
+                null :
+                message.getContent().getText();
+    }
+
+    /** Add or update the text of a message, written with deferred updates. */
+    static void index(int messageID, String text) {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put(COL_DOC_ID, messageID);
+        values.put(COL_TEXT, text);
+        Database.getInstance().execReplaceDeferred(TABLE, values, messageID);
+    }
+
+    static void remove(int messageID) {
+        Database db = Database.getInstance();
+        db.cancelDeferred(TABLE, messageID);
+        db.execDeleteWhereInsecure(TABLE, COL_DOC_ID + " == " + messageID);
+    }
+
+    static void removeThread(int threadID) {
+        Database db = Database.getInstance();
+        // pending index entries of thread are deleted too
+        db.flush();
+        db.execDeleteWhereInsecure(TABLE,
+                "docid IN (SELECT _id FROM " + KonMessage.TABLE + " WHERE " +
+                KonMessage.COL_THREAD_ID + " == " + threadID + ")");
+    }
+
+    /**
+     * Add all decrypted messages to the index that are not indexed yet (e.g.
+     * after a database update). Runs in background.
+     */
+    public static void indexMissingAsync() {
+        Thread thread = new Thread("Message Indexer") {
+            @Override
+            public void run() {
+                MessageSearch.indexMissing();
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    private static void indexMissing() {
+        Database db = Database.getInstance();
+        String where = "_id NOT IN (SELECT docid FROM " + TABLE + ") AND " +
+                KonMessage.COL_ENCR_STAT + " != " + Coder.Encryption.ENCRYPTED.ordinal();
+        int count = 0;
+        while (true) {
+            List<List<Object>> rows = new ArrayList<>(INDEX_CHUNK);
+            try (ResultSet resultSet = db.execSelectWhereInsecure(KonMessage.TABLE,
+                    where, "_id", INDEX_CHUNK)) {
+                while (resultSet.next()) {
+                    String text = MessageContent.fromDatabase(
+                            resultSet.getBytes(KonMessage.COL_CONTENT_BIN),
+                            resultSet.getString(KonMessage.COL_CONTENT)).getText();
+                    rows.add(Arrays.<Object>asList(resultSet.getInt("_id"), text));
+                }
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't load messages for indexing", ex);
+                return;
+            }
+
+            if (rows.isEmpty() || !db.execReplace(TABLE, COLUMNS, rows))
+                break;
+            count += rows.size();
+        }
+        if (count > 0)
+            LOGGER.info("indexed messages: "+count);
+    }
+}
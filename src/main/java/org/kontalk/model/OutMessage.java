@@ -37,9 +37,19 @@ public final class OutMessage extends KonMessage {
     }
 
     public void setStatus(Status status) {
+        if (this.setStatusQuietly(status))
+            this.changed(mReceiptStatus);
+    }
+
+    /**
+     * Set the status without informing observers. Used for bulk updates, the
+     * thread is informed instead, see {@link KonThread#setMessagesChanged}.
+     * @return false if the status is invalid, else true
+     */
+    public boolean setStatusQuietly(Status status) {
         if (status == Status.IN) {
             LOGGER.warning("wrong argument status 'IN'");
-            return;
+            return false;
         }
         if (status == Status.SENT && mReceiptStatus != Status.PENDING)
             LOGGER.warning("unexpected new status of sent message: "+status);
@@ -49,7 +59,7 @@ public final class OutMessage extends KonMessage {
         if (status != Status.PENDING)
             mServerDate = Optional.of(new Date());
         this.save();
-        this.changed(mReceiptStatus);
+        return true;
     }
 
     public void setError(String condition, String text) {
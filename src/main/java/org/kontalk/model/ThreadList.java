@@ -20,14 +20,22 @@ package org.kontalk.model;
 
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Optional;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.kontalk.system.Database;
@@ -41,6 +49,9 @@ public final class ThreadList extends Observable implements Observer {
 
     private static final ThreadList INSTANCE = new ThreadList();
 
+    /** Number of thread previews loaded before observers are notified. */
+    private static final int PREVIEW_CHUNK = 100;
+
     private final HashMap<Integer, KonThread> mMap = new HashMap<>();
 
     private boolean mUnread = false;
@@ -48,52 +59,163 @@ public final class ThreadList extends Observable implements Observer {
     private ThreadList() {
     }
 
-    public void load() {
-        assert mMap.isEmpty();
+    /**
+     * Thread rows read from database, users are not resolved yet.
+     * Does not depend on the user list being loaded.
+     */
+    public static final class Headers {
+        private final Map<Integer, Set<Integer>> mReceiver = new HashMap<>();
+        private final List<Header> mThreads = new ArrayList<>();
 
-        HashMap<Integer, Set<User>> threadUserMapping = new HashMap<>();
-        UserList userList = UserList.getInstance();
+        private Headers() {}
+    }
+
+    private static final class Header {
+        private final int mID;
+        private final String mXMPPID;
+        private final String mSubject;
+        private final boolean mRead;
+        private final String mJSONViewSettings;
+
+        private Header(int id, String xmppID, String subject, boolean read,
+                String jsonViewSettings) {
+            mID = id;
+            mXMPPID = xmppID;
+            mSubject = subject;
+            mRead = read;
+            mJSONViewSettings = jsonViewSettings;
+        }
+    }
+
+    /** Read all thread headers. Can run while the user list is loading. */
+    public static Headers readHeaders() {
+        Headers headers = new Headers();
         Database db = Database.getInstance();
         try (ResultSet receiverRS = db.execSelectAll(KonThread.TABLE_RECEIVER);
                 ResultSet threadRS = db.execSelectAll(KonThread.TABLE)) {
-            // first, find user for threads
-            // TODO: rewrite
             while (receiverRS.next()) {
                 Integer threadID = receiverRS.getInt("thread_id");
                 Integer userID = receiverRS.getInt("user_id");
-                Optional<User> optUser = userList.get(userID);
-                if (!optUser.isPresent()) {
-                    LOGGER.warning("can't find user");
-                    continue;
-                }
-                User user = optUser.get();
-                if (threadUserMapping.containsKey(threadID)) {
-                    threadUserMapping.get(threadID).add(user);
-                } else {
-                    Set<User> userSet = new HashSet<>();
-                    userSet.add(user);
-                    threadUserMapping.put(threadID, userSet);
+                Set<Integer> userIDs = headers.mReceiver.get(threadID);
+                if (userIDs == null) {
+                    userIDs = new HashSet<>();
+                    headers.mReceiver.put(threadID, userIDs);
                 }
+                userIDs.add(userID);
             }
-            // now, create threads
             while (threadRS.next()) {
-                int id = threadRS.getInt("_id");
-                String xmppThreadID = Database.getString(threadRS, "xmpp_id");
-                Set<User> userSet = threadUserMapping.get(id);
-                if (userSet == null) {
-                    LOGGER.warning("no users found for thread");
-                    userSet = new HashSet<>();
-                }
-                String subject = Database.getString(threadRS, KonThread.COL_SUBJ);
-                boolean read = threadRS.getBoolean(KonThread.COL_READ);
-                String jsonViewSettings = Database.getString(threadRS, KonThread.COL_VIEW_SET);
-                this.put(new KonThread(id, xmppThreadID, userSet, subject, read, jsonViewSettings));
-                if (!read)
-                    mUnread = true;
+                headers.mThreads.add(new Header(
+                        threadRS.getInt("_id"),
+                        Database.getString(threadRS, "xmpp_id"),
+                        Database.getString(threadRS, KonThread.COL_SUBJ),
+                        threadRS.getBoolean(KonThread.COL_READ),
+                        Database.getString(threadRS, KonThread.COL_VIEW_SET)));
             }
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't load threads from db", ex);
         }
+        return headers;
+    }
+
+    public void load() {
+        this.load(readHeaders());
+    }
+
+    /**
+     * Load the user list and all threads. Users and thread headers are read
+     * in parallel.
+     */
+    public void loadWithUsers() {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> usersLoaded = executor.submit(new Runnable() {
+            @Override
+            public void run() {
+                UserList.getInstance().load();
+            }
+        });
+        Headers headers = readHeaders();
+        try {
+            usersLoaded.get();
+        } catch (InterruptedException | ExecutionException ex) {
+            LOGGER.log(Level.WARNING, "can't load users", ex);
+        }
+        executor.shutdown();
+        // order matters!
+        this.load(headers);
+    }
+
+    /** Create threads from headers. The user list must be loaded. */
+    public void load(Headers headers) {
+        assert mMap.isEmpty();
+
+        UserList userList = UserList.getInstance();
+        for (Header header : headers.mThreads) {
+            Set<User> userSet = new HashSet<>();
+            Set<Integer> userIDs = headers.mReceiver.get(header.mID);
+            if (userIDs == null) {
+                LOGGER.warning("no users found for thread");
+            } else {
+                for (Integer userID : userIDs) {
+                    Optional<User> optUser = userList.get(userID);
+                    if (!optUser.isPresent()) {
+                        LOGGER.warning("can't find user");
+                        continue;
+                    }
+                    userSet.add(optUser.get());
+                }
+            }
+            this.put(new KonThread(header.mID, header.mXMPPID, userSet,
+                    header.mSubject, header.mRead, header.mJSONViewSettings));
+            if (!header.mRead)
+                mUnread = true;
+        }
+        this.changed(null);
+    }
+
+    /**
+     * Load the date of the newest message for all threads in background,
+     * without loading the messages. Observers are notified in chunks.
+     */
+    public void loadPreviewsAsync() {
+        Thread thread = new Thread("Thread Preview Loader") {
+            @Override
+            public void run() {
+                ThreadList.this.loadPreviews();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Load the date of the newest message for all threads. */
+    public void loadPreviews() {
+        String select = "SELECT " + KonMessage.COL_THREAD_ID + ", MAX(" +
+                KonMessage.COL_DATE + ") FROM " + KonMessage.TABLE +
+                " GROUP BY " + KonMessage.COL_THREAD_ID;
+        Set<KonThread> withPreview = new HashSet<>();
+        Database db = Database.getInstance();
+        try (ResultSet resultSet = db.execSelectInsecure(select)) {
+            while (resultSet.next()) {
+                KonThread thread;
+                synchronized (this) {
+                    thread = mMap.get(resultSet.getInt(1));
+                }
+                if (thread == null)
+                    continue;
+                thread.getMessages().setPreview(Optional.of(new Date(resultSet.getLong(2))));
+                withPreview.add(thread);
+                if (withPreview.size() % PREVIEW_CHUNK == 0)
+                    this.changed(null);
+            }
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't load thread previews", ex);
+        }
+
+        // remaining threads have no messages
+        for (KonThread thread : this.getAll()) {
+            if (!withPreview.contains(thread))
+                thread.getMessages().setPreview(Optional.<Date>empty());
+        }
         this.changed(null);
     }
 
@@ -153,6 +275,36 @@ public final class ThreadList extends Observable implements Observer {
         return Optional.empty();
     }
 
+    /**
+     * Get the newest outgoing message with the XMPP ID specified, in any
+     * thread.
+     */
+    public Optional<OutMessage> getOutMessage(String xmppID) {
+        Optional<OutMessage> optM = MessageIndex.getInstance().get(xmppID);
+        if (optM.isPresent())
+            return optM;
+
+        // message not loaded, find thread in database
+        String where = KonMessage.COL_DIR + " == " + KonMessage.Direction.OUT.ordinal() +
+                " AND " + KonMessage.COL_XMPP_ID + " == " + Database.quote(xmppID);
+        int threadID;
+        Database db = Database.getInstance();
+        try (ResultSet resultSet = db.execSelectWhereInsecure(KonMessage.TABLE,
+                where, "_id DESC", 1)) {
+            if (!resultSet.next())
+                return Optional.empty();
+            threadID = resultSet.getInt(KonMessage.COL_THREAD_ID);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't find message in db", ex);
+            return Optional.empty();
+        }
+
+        Optional<KonThread> optThread = this.get(threadID);
+        if (!optThread.isPresent())
+            return Optional.empty();
+        return optThread.get().getMessages().getLast(xmppID);
+    }
+
     public boolean contains(int id) {
         return mMap.containsKey(id);
     }
@@ -18,11 +18,19 @@
 
 package org.kontalk.model;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Optional;
 import java.util.SortedSet;
@@ -36,96 +44,273 @@ import org.kontalk.util.EncodingUtils;
 /**
  * Messages of thread.
  *
+ * Only a window of the newest messages is loaded, older messages are loaded
+ * page by page on request and can be evicted again.
+ *
+ * There is at most one instance for each message row: messages outside the
+ * window (evicted or loaded for a query) are remembered as long as they are
+ * used somewhere else.
+ *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
 public final class ThreadMessages {
     private static final Logger LOGGER = Logger.getLogger(ThreadMessages.class.getName());
 
+    /** Number of messages loaded with one query. */
+    private static final int PAGE_SIZE = 100;
+
+    private static final String ORDER_DESC =
+            KonMessage.COL_DATE + " DESC, _id DESC";
+
+    /** Order of pages, newest first. */
+    private static final Comparator<KonMessage> NEWEST_FIRST = new Comparator<KonMessage>() {
+        @Override
+        public int compare(KonMessage m1, KonMessage m2) {
+            int dateComp = m2.getDate().compareTo(m1.getDate());
+            return dateComp != 0 ? dateComp : Integer.compare(m2.getID(), m1.getID());
+        }
+    };
+
     private final KonThread mThread;
     private final NavigableSet<KonMessage> mSet =
         Collections.synchronizedNavigableSet(new TreeSet<KonMessage>());
+    /** Loaded messages by database ID. */
+    private final Map<Integer, KonMessage> mMap = new HashMap<>();
+    /** All message instances by database ID, guarded by this. */
+    private final Map<Integer, InstanceRef> mInstances = new HashMap<>();
+    /** Cleared references of message instances, guarded by this. */
+    private final ReferenceQueue<KonMessage> mCleared = new ReferenceQueue<>();
 
     private boolean mLoaded = false;
+    /** Oldest loaded message, lower bound of the window. */
+    private KonMessage mOldest = null;
+    private boolean mHasOlder = false;
+    /** Date of newest message, available before messages are loaded. */
+    private Optional<Date> mPreviewDate = Optional.empty();
+    private boolean mHasPreview = false;
 
     public ThreadMessages(KonThread thread) {
         mThread = thread;
     }
 
-    private void ensureLoaded() {
+    private synchronized void ensureLoaded() {
         if (mLoaded)
             return;
 
-        this.loadMessages();
+        this.loadPage(this.threadWhere());
         mLoaded = true;
     }
 
-    private void loadMessages() {
+    /**
+     * Load the next page of messages that are older than the loaded messages.
+     * Return true if messages were added.
+     * Queries the database, should not be called on the EDT.
+     */
+    public synchronized boolean loadOlder() {
+        this.ensureLoaded();
+
+        if (!mHasOlder || mOldest == null)
+            return false;
+
+        long date = mOldest.getDate().getTime();
+        String where = this.threadWhere() + " AND (" +
+                KonMessage.COL_DATE + " < " + date + " OR (" +
+                KonMessage.COL_DATE + " == " + date + " AND _id < " +
+                mOldest.getID() + "))";
+        return this.loadPage(where) > 0;
+    }
+
+    /** Return true if there are older messages in the database not loaded. */
+    public synchronized boolean hasOlder() {
+        this.ensureLoaded();
+
+        return mHasOlder;
+    }
+
+    /**
+     * Evict all loaded messages except the newest page.
+     * Return true if messages were removed.
+     */
+    public synchronized boolean evictOlder() {
+        if (mSet.size() <= PAGE_SIZE)
+            return false;
+
+        List<KonMessage> messages = this.sortedNewestFirst();
+        for (KonMessage message : messages.subList(PAGE_SIZE, messages.size())) {
+            mSet.remove(message);
+            mMap.remove(message.getID());
+            MessageIndex.getInstance().remove(message);
+        }
+        mOldest = messages.get(PAGE_SIZE - 1);
+        mHasOlder = true;
+        return true;
+    }
+
+    private List<KonMessage> sortedNewestFirst() {
+        List<KonMessage> messages;
+        synchronized (mSet) {
+            messages = new ArrayList<>(mSet);
+        }
+        Collections.sort(messages, NEWEST_FIRST);
+        return messages;
+    }
+
+    /** Load one page (newest first) and return the number of messages read. */
+    private int loadPage(String where) {
+        List<KonMessage> messages = this.select(where, PAGE_SIZE);
+        for (KonMessage message : messages) {
+            if (!mMap.containsKey(message.getID()))
+                this.addSilent(message);
+            mOldest = message;
+        }
+        mHasOlder = messages.size() == PAGE_SIZE;
+        return messages.size();
+    }
+
+    /**
+     * Get messages from database (newest first), existing instances are used
+     * if possible.
+     */
+    private List<KonMessage> select(String where, int limit) {
         Database db = Database.getInstance();
-        KonMessage.Direction[] dirValues = KonMessage.Direction.values();
-        KonMessage.Status[] statusValues = KonMessage.Status.values();
-        Coder.Encryption[] encryptionValues = Coder.Encryption.values();
-        Coder.Signing[] signingValues = Coder.Signing.values();
-        String where = KonMessage.COL_THREAD_ID + " == " + mThread.getID();
+        List<KonMessage> messages = this.selectOnce(db, where, limit);
+        if (messages == null) {
+            // unknown rows with changes not written yet, write and read again
+            db.flush();
+            messages = this.selectOnce(db, where, limit);
+        }
+        return messages != null ? messages : new ArrayList<KonMessage>();
+    }
+
+    /**
+     * Return null if a new instance must be created for a row with deferred
+     * updates.
+     */
+    private List<KonMessage> selectOnce(Database db, String where, int limit) {
+        List<KonMessage> messages = new ArrayList<>();
         try (ResultSet resultSet = db.execSelectWhereInsecure(KonMessage.TABLE,
-                where)) {
+                where, ORDER_DESC, limit)) {
             while (resultSet.next()) {
                 int id = resultSet.getInt("_id");
-
-                int dirIndex = resultSet.getInt(KonMessage.COL_DIR);
-                KonMessage.Direction dir = dirValues[dirIndex];
-                int userID = resultSet.getInt(KonMessage.COL_USER_ID);
-                Optional<User> optUser = UserList.getInstance().get(userID);
-                if (!optUser.isPresent()) {
-                    LOGGER.warning("can't find user in db, id: "+userID);
-                    continue;
+                KonMessage message = this.getInstance(id);
+                if (message == null) {
+                    if (db.isDeferred(KonMessage.TABLE, id))
+                        return null;
+                    Optional<KonMessage> optMessage = this.createMessage(resultSet);
+                    if (!optMessage.isPresent())
+                        continue;
+                    message = optMessage.get();
+                    this.putInstance(message);
                 }
-                String jid = resultSet.getString(KonMessage.COL_JID);
-                String xmppID = Database.getString(resultSet, KonMessage.COL_XMPP_ID);
-                Date date = new Date(resultSet.getLong(KonMessage.COL_DATE));
-                int statusIndex = resultSet.getInt(KonMessage.COL_REC_STAT);
-                KonMessage.Status status = statusValues[statusIndex];
-                String jsonContent = resultSet.getString(KonMessage.COL_CONTENT);
-                MessageContent content = MessageContent.fromJSONString(jsonContent);
-
-                int encryptionIndex = resultSet.getInt(KonMessage.COL_ENCR_STAT);
-                Coder.Encryption encryption = encryptionValues[encryptionIndex];
-                int signingIndex = resultSet.getInt(KonMessage.COL_SIGN_STAT);
-                Coder.Signing signing = signingValues[signingIndex];
-                int errorFlags = resultSet.getInt(KonMessage.COL_COD_ERR);
-                EnumSet<Coder.Error> coderErrors = EncodingUtils.intToEnumSet(
-                        Coder.Error.class, errorFlags);
-                CoderStatus coderStatus = new CoderStatus(encryption, signing, coderErrors);
-                String jsonServerError = resultSet.getString(KonMessage.COL_SERV_ERR);
-                KonMessage.ServerError serverError =
-                        KonMessage.ServerError.fromJSON(jsonServerError);
-                long sDate = resultSet.getLong(KonMessage.COL_SERV_DATE);
-                Optional<Date> serverDate = sDate == 0 ?
-                        Optional.<Date>empty() :
-                        Optional.of(new Date(sDate));
-
-                KonMessage.Builder builder = new KonMessage.Builder(id, mThread,
-                        dir, optUser.get(), date);
-                builder.jid(jid);
-                builder.xmppID(xmppID);
-                builder.serverDate(serverDate);
-                builder.receiptStatus(status);
-                builder.content(content);
-                builder.coderStatus(coderStatus);
-                builder.serverError(serverError);
-
-                KonMessage newMessage = builder.build();
-
-                this.addSilent(newMessage);
+                messages.add(message);
             }
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't load messages from db", ex);
         }
+        return messages;
+    }
+
+    private KonMessage getInstance(int id) {
+        KonMessage message = mMap.get(id);
+        if (message != null)
+            return message;
+        InstanceRef ref = mInstances.get(id);
+        return ref != null ? ref.get() : null;
+    }
+
+    private void putInstance(KonMessage message) {
+        // remove entries of collected instances
+        Reference<? extends KonMessage> cleared;
+        while ((cleared = mCleared.poll()) != null) {
+            InstanceRef ref = (InstanceRef) cleared;
+            // the ID may already be mapped to a newer instance
+            if (mInstances.get(ref.mID) == ref)
+                mInstances.remove(ref.mID);
+        }
+        mInstances.put(message.getID(), new InstanceRef(message, mCleared));
+    }
+
+    private Optional<KonMessage> createMessage(ResultSet resultSet) throws SQLException {
+        int id = resultSet.getInt("_id");
+
+        int dirIndex = resultSet.getInt(KonMessage.COL_DIR);
+        KonMessage.Direction dir = KonMessage.Direction.values()[dirIndex];
+        int userID = resultSet.getInt(KonMessage.COL_USER_ID);
+        Optional<User> optUser = UserList.getInstance().get(userID);
+        if (!optUser.isPresent()) {
+            LOGGER.warning("can't find user in db, id: "+userID);
+            return Optional.empty();
+        }
+        String jid = resultSet.getString(KonMessage.COL_JID);
+        String xmppID = Database.getString(resultSet, KonMessage.COL_XMPP_ID);
+        Date date = new Date(resultSet.getLong(KonMessage.COL_DATE));
+        int statusIndex = resultSet.getInt(KonMessage.COL_REC_STAT);
+        KonMessage.Status status = KonMessage.Status.values()[statusIndex];
+        MessageContent content = MessageContent.fromDatabase(
+                resultSet.getBytes(KonMessage.COL_CONTENT_BIN),
+                resultSet.getString(KonMessage.COL_CONTENT));
+
+        int encryptionIndex = resultSet.getInt(KonMessage.COL_ENCR_STAT);
+        Coder.Encryption encryption = Coder.Encryption.values()[encryptionIndex];
+        int signingIndex = resultSet.getInt(KonMessage.COL_SIGN_STAT);
+        Coder.Signing signing = Coder.Signing.values()[signingIndex];
+        int errorFlags = resultSet.getInt(KonMessage.COL_COD_ERR);
+        EnumSet<Coder.Error> coderErrors = EncodingUtils.intToEnumSet(
+                Coder.Error.class, errorFlags);
+        CoderStatus coderStatus = new CoderStatus(encryption, signing, coderErrors);
+        String jsonServerError = resultSet.getString(KonMessage.COL_SERV_ERR);
+        KonMessage.ServerError serverError =
+                KonMessage.ServerError.fromJSON(jsonServerError);
+        long sDate = resultSet.getLong(KonMessage.COL_SERV_DATE);
+        Optional<Date> serverDate = sDate == 0 ?
+                Optional.<Date>empty() :
+                Optional.of(new Date(sDate));
+
+        KonMessage.Builder builder = new KonMessage.Builder(id, mThread,
+                dir, optUser.get(), date);
+        builder.jid(jid);
+        builder.xmppID(xmppID);
+        builder.serverDate(serverDate);
+        builder.receiptStatus(status);
+        builder.content(content);
+        builder.coderStatus(coderStatus);
+        builder.serverError(serverError);
+
+        return Optional.of(builder.build());
+    }
+
+    synchronized void setPreview(Optional<Date> lastDate) {
+        mPreviewDate = lastDate;
+        mHasPreview = true;
+    }
+
+    /**
+     * Return if the date of the newest message is known. Does not load any
+     * messages.
+     */
+    public synchronized boolean hasLastDate() {
+        return mLoaded || mHasPreview;
+    }
+
+    /**
+     * Get the date of the newest message, empty if there are no messages (or
+     * the date is not known yet). Does not load any messages.
+     */
+    public synchronized Optional<Date> getLastDate() {
+        if (!mLoaded)
+            return mPreviewDate;
+
+        synchronized (mSet) {
+            return mSet.isEmpty() ?
+                    Optional.<Date>empty() :
+                    Optional.of(mSet.last().getDate());
+        }
     }
 
     /**
      * Add message to thread without notifying other components.
      */
-    boolean add(KonMessage message) {
+    synchronized boolean add(KonMessage message) {
         this.ensureLoaded();
 
         return this.addSilent(message);
@@ -138,9 +323,17 @@ public final class ThreadMessages {
             return false;
         }
         boolean added = mSet.add(message);
+        if (added) {
+            mMap.put(message.getID(), message);
+            this.putInstance(message);
+            MessageIndex.getInstance().add(message);
+        }
         return added;
     }
 
+    /**
+     * Get all loaded messages.
+     */
     public NavigableSet<KonMessage> getAll() {
         this.ensureLoaded();
 
@@ -150,17 +343,15 @@ public final class ThreadMessages {
     /**
      * Get all outgoing messages with status "PENDING" for this thread.
      */
-    public SortedSet<OutMessage> getPending() {
+    public synchronized SortedSet<OutMessage> getPending() {
         this.ensureLoaded();
 
+        String where = this.outWhere() + " AND " +
+                KonMessage.COL_REC_STAT + " == " + KonMessage.Status.PENDING.ordinal();
         SortedSet<OutMessage> s = new TreeSet<>();
-        // TODO performance, probably additional map needed
-        // TODO use lambda in near future
-        for (KonMessage m : mSet) {
-            if (m.getReceiptStatus() == KonMessage.Status.PENDING &&
-                    m instanceof OutMessage) {
+        for (KonMessage m : this.select(where, Integer.MAX_VALUE)) {
+            if (m instanceof OutMessage)
                 s.add((OutMessage) m);
-            }
         }
         return s;
     }
@@ -168,31 +359,59 @@ public final class ThreadMessages {
     /**
      * Get the newest (ie last received) outgoing message.
      */
-    public Optional<OutMessage> getLast(String xmppID) {
+    public synchronized Optional<OutMessage> getLast(String xmppID) {
         this.ensureLoaded();
 
-        // TODO performance
-        OutMessage message = null;
-        for (KonMessage m: mSet.descendingSet()) {
-            if (m.getXMPPID().equals(xmppID) && m instanceof OutMessage) {
-                message = (OutMessage) m;
-            }
-        }
+        Optional<OutMessage> optM = MessageIndex.getInstance().get(xmppID);
+        if (optM.isPresent() && optM.get().getThread() == mThread)
+            return optM;
 
-        if (message == null) {
-            return Optional.empty();
+        // not in loaded window
+        String where = this.outWhere() + " AND " +
+                KonMessage.COL_XMPP_ID + " == " + Database.quote(xmppID);
+        for (KonMessage m : this.select(where, 1)) {
+            if (m instanceof OutMessage)
+                return Optional.of((OutMessage) m);
         }
 
-        return Optional.of(message);
+        return Optional.empty();
     }
 
-    void delete() {
-        this.ensureLoaded();
+    private String threadWhere() {
+        return KonMessage.COL_THREAD_ID + " == " + mThread.getID();
+    }
+
+    private String outWhere() {
+        return this.threadWhere() + " AND " +
+                KonMessage.COL_DIR + " == " + KonMessage.Direction.OUT.ordinal();
+    }
+
+    synchronized void delete() {
+        Database db = Database.getInstance();
+        MessageSearch.removeThread(mThread.getID());
+        boolean deleted = db.execDeleteWhereInsecure(KonMessage.TABLE,
+                this.threadWhere());
+        if (!deleted)
+            return;
+
+        synchronized (mSet) {
+            for (KonMessage message : mSet)
+                MessageIndex.getInstance().remove(message);
+        }
+        mSet.clear();
+        mMap.clear();
+        mInstances.clear();
+        mOldest = null;
+        mHasOlder = false;
+    }
+
+    /** Weak reference to a message instance that knows the message ID. */
+    private static final class InstanceRef extends WeakReference<KonMessage> {
+        private final int mID;
 
-        // TODO very slow
-        for (KonMessage message : mSet) {
-            boolean deleted = message.delete();
-            if (!deleted) return;
+        private InstanceRef(KonMessage message, ReferenceQueue<KonMessage> queue) {
+            super(message, queue);
+            mID = message.getID();
         }
     }
 }
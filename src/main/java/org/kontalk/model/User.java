@@ -252,7 +252,7 @@ public final class User extends Observable implements Comparable<User> {
         set.put(COL_ENCR, mEncrypted);
         set.put(COL_PUB_KEY, Database.setString(mKey));
         set.put(COL_KEY_FP, Database.setString(mFingerprint));
-        db.execUpdate(TABLE, set, mID);
+        db.execUpdateDeferred(TABLE, set, mID);
     }
 
     private void changed(Object arg) {
@@ -108,12 +108,16 @@ public final class Control extends Observable {
 
     private final Client mClient;
     private final ChatStateManager mChatStateManager;
+    private final DecryptionPool mDecryptionPool;
+    private final ReceiptAggregator mReceiptAggregator;
 
     private Status mCurrentStatus = Status.DISCONNECTED;
 
     public Control() {
         mClient = new Client(this);
         mChatStateManager = new ChatStateManager(mClient);
+        mDecryptionPool = new DecryptionPool(this);
+        mReceiptAggregator = new ReceiptAggregator();
     }
 
     public void launch() {
@@ -138,7 +142,10 @@ public final class Control extends Observable {
         this.changed(new ViewEvent.StatusChanged());
         UserList.getInstance().save();
         ThreadList.getInstance().save();
+        // apply status updates still collected
+        mReceiptAggregator.flush();
         try {
+            // deferred updates are written on close
             Database.getInstance().close();
         } catch (RuntimeException ex) {
             // ignore
@@ -267,6 +274,12 @@ public final class Control extends Observable {
         mCurrentStatus = status;
         this.changed(new ViewEvent.StatusChanged());
 
+        if (status == Status.CONNECTED && mClient.streamWasResumed()) {
+            // pending messages are still known by the connection, they are
+            // resent by stream management or already in the outbox
+            return;
+        }
+
         if (status == Status.CONNECTED) {
             // send all pending messages
             for (KonThread thread: ThreadList.getInstance().getAll())
@@ -349,19 +362,34 @@ public final class Control extends Observable {
         }
         newMessage.save();
 
-        this.decryptAndDownload(newMessage);
-
-        this.changed(new ViewEvent.NewMessage(newMessage));
+        // decrypted in background, view is informed when done
+        mDecryptionPool.submit(newMessage, true);
 
         return newMessage.getID() >= -1;
     }
 
     /**
      * Decrypt an incoming message and download attachment if present.
+     * Done in background.
      */
     public void decryptAndDownload(InMessage message) {
-        Coder.processInMessage(message);
+        mDecryptionPool.submit(message, false);
+    }
+
+    /**
+     * Cancel the attachment download of a message.
+     */
+    public void cancelDownload(InMessage message) {
+        boolean cancelled = Downloader.getInstance().cancel(message);
+        if (!cancelled)
+            LOGGER.info("download not queued");
+    }
 
+    /**
+     * Called by decryption pool after a message was decrypted, in order of
+     * submission for each thread.
+     */
+    void onDecrypted(InMessage message, boolean isNew) {
         if (!message.getCoderStatus().getErrors().isEmpty()) {
             this.handleSecurityErrors(message);
         }
@@ -369,31 +397,25 @@ public final class Control extends Observable {
         if (message.getContent().getAttachment().isPresent()) {
             Downloader.getInstance().queueDownload(message);
         }
+
+        if (isNew)
+            this.changed(new ViewEvent.NewMessage(message));
     }
 
     /**
-     * Set the receipt status of a message.
-     * @param xmppID XMPP ID of message
-     * @param status new receipt status of message
+     * Set the status of an outgoing message. Applied in background together
+     * with other status updates.
      */
     public void setMessageStatus(MessageIDs ids, KonMessage.Status status) {
-        Optional<OutMessage> optMessage = getMessage(ids);
-        if (!optMessage.isPresent())
-            return;
-        OutMessage m = optMessage.get();
-
-        if (m.getReceiptStatus() == KonMessage.Status.RECEIVED)
-            // probably by another client
-            return;
-
-        m.setStatus(status);
+        mReceiptAggregator.add(ids, status);
     }
 
+    /**
+     * Set a server error for an outgoing message. Applied in order with other
+     * status updates.
+     */
     public void setMessageError(MessageIDs ids, Condition condition, String errorText) {
-        Optional<OutMessage> optMessage = getMessage(ids);
-        if (!optMessage.isPresent())
-            return ;
-        optMessage.get().setError(condition.toString(), errorText);
+        mReceiptAggregator.addError(ids, condition.toString(), errorText);
     }
 
     /**
@@ -512,6 +534,7 @@ public final class Control extends Observable {
         }
         PGPUtils.PGPCoderKey key = optKey.get();
         user.setKey(rawKey, key.fingerprint);
+        Coder.invalidateKey(user);
 
         // if not set, use uid in key for user name
         LOGGER.info("full UID in key: '" + key.userID + "'");
@@ -566,31 +589,12 @@ public final class Control extends Observable {
         return optThread.orElse(threadList.get(user));
     }
 
-    private static Optional<OutMessage> getMessage(MessageIDs ids) {
-        // get thread by thread ID
-        ThreadList tl = ThreadList.getInstance();
-        Optional<KonThread> optThread = tl.get(ids.threadID);
-        if (optThread.isPresent()) {
-            return optThread.get().getMessages().getLast(ids.xmppID);
-        }
-
-        // get thread by thread by jid
-        Optional<User> optUser = UserList.getInstance().get(ids.jid);
-        if (optUser.isPresent() && tl.contains(optUser.get())) {
-            Optional<OutMessage> optM = tl.get(optUser.get()).getMessages().getLast(ids.xmppID);
-            if (optM.isPresent())
-                return optM;
-        }
-
-        // fallback: search everywhere
-        for (KonThread thread: tl.getAll()) {
-            Optional<OutMessage> optM = thread.getMessages().getLast(ids.xmppID);
-            if (optM.isPresent())
-                return optM;
-        }
-
-        LOGGER.warning("can't find message by IDs: "+ids);
-        return Optional.empty();
+    static Optional<OutMessage> getMessage(MessageIDs ids) {
+        Optional<OutMessage> optM =
+                ThreadList.getInstance().getOutMessage(ids.xmppID);
+        if (!optM.isPresent())
+            LOGGER.warning("can't find message by IDs: "+ids);
+        return optM;
     }
 
     private static User.Subscription rosterToModelSubscription(
@@ -18,6 +18,10 @@
 
 package org.kontalk.system;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -26,17 +30,22 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
 import org.kontalk.misc.KonException;
 import org.kontalk.model.KonMessage;
 import org.kontalk.model.KonThread;
+import org.kontalk.model.MessageSearch;
 import org.kontalk.model.User;
 import org.kontalk.util.EncodingUtils;
 import org.sqlite.SQLiteConfig;
@@ -45,9 +54,10 @@ import org.sqlite.SQLiteConfig;
  * Global database for permanently storing all model information.
  * Uses the JDBC API and SQLite as DBMS.
  *
- * Database access is not concurrent safe (connection pool is needed). At least
- * writing is synchronized. Hopefully we don't see this no more:
- * "SQLException: ResultSet already requested" or "ResultSet closed"
+ * SQLite runs in WAL mode with one connection for writing and a small pool of
+ * read-only connections. Writing is synchronized; readers don't block writers
+ * (and the other way around). Each select borrows a reader connection until
+ * the returned ResultSet is closed.
  *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
@@ -58,11 +68,25 @@ public final class Database {
 
     public static final String DB_NAME = "kontalk_db.sqlite";
 
-    private static final int DB_VERSION = 2;
+    private static final int DB_VERSION = 5;
     private static final String SV = "schema_version";
     private static final String UV = "user_version";
 
+    /** Number of read-only connections in pool. */
+    private static final int READER_COUNT = 4;
+    /** Time to wait for a free reader before warning (and waiting again). */
+    private static final int READER_TIMEOUT = 5; // seconds
+
+    private final BlockingQueue<Connection> mReaders =
+            new ArrayBlockingQueue<>(READER_COUNT);
+    /** All reader connections, free or borrowed. */
+    private final List<Connection> mAllReaders = new ArrayList<>(READER_COUNT);
+
+    private final DeferredWriter mDeferred = new DeferredWriter(this);
+
     private Connection mConn = null;
+    private int mReaderCount = 0;
+    private volatile boolean mClosed = false;
 
     private Database(String path) throws KonException {
         // load the sqlite-JDBC driver using the current class loader
@@ -73,9 +97,13 @@ public final class Database {
             throw new KonException(KonException.Error.DB, ex);
         }
 
-        // create database connection
+        // create database connection (for writing)
         SQLiteConfig config = new SQLiteConfig();
         config.enforceForeignKeys(true);
+        // readers see the last commit while writing is in progress
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        // in WAL mode this is still safe against corruption
+        config.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
         try {
           mConn = DriverManager.getConnection("jdbc:sqlite:" + path, config.toProperties());
         } catch(SQLException ex) {
@@ -93,7 +121,8 @@ public final class Database {
         }
 
         boolean isNew;
-        try (ResultSet rs = this.execQuery("PRAGMA "+SV)) {
+        try (Statement stat = mConn.createStatement();
+                ResultSet rs = stat.executeQuery("PRAGMA "+SV)) {
             isNew = rs.getInt(SV) == 0;
         } catch (SQLException ex) {
             LOGGER.log(Level.SEVERE, "can't get schema version", ex);
@@ -117,28 +146,54 @@ public final class Database {
                         KonMessage.TABLE +
                         " " +
                         KonMessage.CREATE_TABLE);
+                for (String index : KonMessage.CREATE_INDICES)
+                    stat.executeUpdate(index);
+                stat.executeUpdate("CREATE VIRTUAL TABLE IF NOT EXISTS " +
+                        MessageSearch.TABLE +
+                        " " +
+                        MessageSearch.CREATE_TABLE);
                 // set version
                 mConn.createStatement().execute("PRAGMA "+UV+" = "+DB_VERSION);
             } catch (SQLException ex) {
                 LOGGER.log(Level.SEVERE, "can't create tables", ex);
                 throw new KonException(KonException.Error.DB, ex);
             }
-            return;
+        } else {
+            // update if needed
+            int version = -1;
+            try (Statement stat = mConn.createStatement();
+                    ResultSet rs = stat.executeQuery("PRAGMA "+UV)) {
+                version = rs.getInt(UV);
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't get db version", ex);
+            }
+            if (version >= 0) {
+                LOGGER.info("database version: "+version);
+                try {
+                    this.update(version);
+                } catch (SQLException ex) {
+                    LOGGER.log(Level.WARNING, "can't update db", ex);
+                }
+            }
         }
 
-        // update if needed
-        int version;
-        try (ResultSet rs = this.execQuery("PRAGMA "+UV)) {
-            version = rs.getInt(UV);
-        } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't get db version", ex);
-            return;
-        }
-        LOGGER.info("database version: "+version);
-        try {
-            this.update(version);
-        } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't update db", ex);
+        this.checkQueryPlans();
+
+        // create reader connections, after database file and tables exist
+        SQLiteConfig readConfig = new SQLiteConfig();
+        readConfig.setReadOnly(true);
+        for (int i = 0; i < READER_COUNT; i++) {
+            try {
+                Connection reader = DriverManager.getConnection("jdbc:sqlite:" + path,
+                        readConfig.toProperties());
+                mAllReaders.add(reader);
+                mReaders.add(reader);
+                mReaderCount++;
+            } catch (SQLException ex) {
+                // not fatal, selects fall back to writer connection
+                LOGGER.log(Level.WARNING, "can't create reader connection", ex);
+                break;
+            }
         }
     }
 
@@ -155,12 +210,82 @@ public final class Database {
                     " ADD COLUMN "+KonMessage.COL_SERV_DATE+" DEFAULT NULL");
         }
 
+        if (fromVersion < 3) {
+            for (String index : KonMessage.CREATE_INDICES)
+                mConn.createStatement().execute(index);
+        }
+
+        if (fromVersion < 4) {
+            // filled later, see MessageSearch.indexMissing()
+            mConn.createStatement().execute("CREATE VIRTUAL TABLE IF NOT EXISTS "+
+                    MessageSearch.TABLE+" "+MessageSearch.CREATE_TABLE);
+        }
+
+        if (fromVersion < 5) {
+            // old rows keep JSON content until they are saved again
+            mConn.createStatement().execute("ALTER TABLE "+KonMessage.TABLE+
+                    " ADD COLUMN "+KonMessage.COL_CONTENT_BIN+" BLOB DEFAULT NULL");
+        }
+
         // set new version
         mConn.createStatement().execute("PRAGMA "+UV+" = "+DB_VERSION);
         LOGGER.info("updated to version "+DB_VERSION);
     }
 
+    /**
+     * Log frequent queries that scan a whole table. A scan means that an index
+     * is missing and the query gets slower with every message.
+     */
+    private void checkQueryPlans() {
+        String thread = KonMessage.COL_THREAD_ID + " == 0";
+        String out = thread + " AND " + KonMessage.COL_DIR + " == 0";
+        String[] queries = {
+            // newest message page of thread
+            "SELECT * FROM " + KonMessage.TABLE + " WHERE " + thread +
+                    " ORDER BY " + KonMessage.COL_DATE + " DESC, _id DESC LIMIT 1",
+            // older message page of thread
+            "SELECT * FROM " + KonMessage.TABLE + " WHERE " + thread +
+                    " AND (" + KonMessage.COL_DATE + " < 0 OR (" +
+                    KonMessage.COL_DATE + " == 0 AND _id < 0))" +
+                    " ORDER BY " + KonMessage.COL_DATE + " DESC, _id DESC LIMIT 1",
+            // pending messages of thread
+            "SELECT * FROM " + KonMessage.TABLE + " WHERE " + out +
+                    " AND " + KonMessage.COL_REC_STAT + " == 0",
+            // message by XMPP ID
+            "SELECT * FROM " + KonMessage.TABLE + " WHERE " + out +
+                    " AND " + KonMessage.COL_XMPP_ID + " == ''"
+        };
+
+        for (String query : queries) {
+            try (Statement stat = mConn.createStatement();
+                    ResultSet rs = stat.executeQuery("EXPLAIN QUERY PLAN " + query)) {
+                while (rs.next()) {
+                    String detail = rs.getString("detail");
+                    if (detail != null && detail.startsWith("SCAN "))
+                        LOGGER.warning("full table scan: " + detail + "; query: " + query);
+                }
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't explain query: " + query, ex);
+            }
+        }
+    }
+
     synchronized void close() {
+        // write everything still pending before closing
+        this.flush();
+        mDeferred.stop();
+
+        // also readers still borrowed by open result sets
+        mClosed = true;
+        mReaders.clear();
+        for (Connection reader : mAllReaders) {
+            try {
+                reader.close();
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't close reader connection", ex);
+            }
+        }
+
         try {
             if(mConn == null || mConn.isClosed())
                 return;
@@ -189,19 +314,115 @@ public final class Database {
         return this.execQuery("SELECT * FROM " + table + " WHERE " + where);
     }
 
+    /**
+     * Select at most 'limit' rows in the order specified from one table that
+     * match an arbitrary 'where' clause.
+     * Insecure to SQL injections, use with caution!
+     * The returned ResultSet must be closed by the caller after usage!
+     */
+    public ResultSet execSelectWhereInsecure(String table, String where,
+            String orderBy, int limit) throws SQLException {
+        return this.execQuery("SELECT * FROM " + table + " WHERE " + where +
+                " ORDER BY " + orderBy + " LIMIT " + limit);
+    }
+
+    /**
+     * Execute an arbitrary select statement.
+     * Insecure to SQL injections, use with caution!
+     * The returned ResultSet must be closed by the caller after usage!
+     */
+    public ResultSet execSelectInsecure(String select) throws SQLException {
+        return this.execQuery(select);
+    }
+
     private ResultSet execQuery(String select) throws SQLException {
+        Connection conn = this.takeReader();
         try {
-            PreparedStatement stat = mConn.prepareStatement(select);
+            PreparedStatement stat = conn.prepareStatement(select);
             // does not work, i dont care
             //stat.closeOnCompletion();
             ResultSet resultSet = stat.executeQuery();
-            return resultSet;
+            return this.releaseOnClose(resultSet, stat, conn);
         } catch (SQLException ex) {
             LOGGER.log(Level.WARNING, "can't execute select: " + select, ex);
+            this.releaseReader(conn);
             throw ex;
         }
     }
 
+    /**
+     * Borrow a reader connection from the pool, wait until one is available.
+     * If all readers are in use for too long (probably some ResultSet was not
+     * closed) a warning is logged.
+     */
+    private Connection takeReader() throws SQLException {
+        if (mReaderCount == 0)
+            return mConn;
+
+        while (true) {
+            if (mClosed)
+                throw new SQLException("database closed");
+            Connection conn;
+            try {
+                conn = mReaders.poll(READER_TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted while waiting for reader", ex);
+            }
+            if (conn != null)
+                return conn;
+            LOGGER.warning("no reader connection available after "+READER_TIMEOUT
+                    +"s, result set not closed?");
+        }
+    }
+
+    private void releaseReader(Connection conn) {
+        if (conn == mConn || mClosed)
+            return;
+        boolean added = mReaders.offer(conn);
+        if (!added)
+            LOGGER.warning("can't return reader connection to pool");
+    }
+
+    /**
+     * Wrap a result set: closing it also closes the statement and returns the
+     * connection to the reader pool.
+     */
+    private ResultSet releaseOnClose(final ResultSet resultSet,
+            final Statement stat,
+            final Connection conn) {
+        InvocationHandler handler = new InvocationHandler() {
+            private boolean mReleased = false;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                if (method.getName().equals("close")) {
+                    synchronized (this) {
+                        if (mReleased)
+                            return null;
+                        mReleased = true;
+                    }
+                    try {
+                        stat.close();
+                    } finally {
+                        Database.this.releaseReader(conn);
+                    }
+                    return null;
+                }
+                try {
+                    return method.invoke(resultSet, args);
+                } catch (InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+        };
+        return (ResultSet) Proxy.newProxyInstance(
+                Database.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class},
+                handler);
+    }
+
     /**
      * Add a new model / row to database.
      * @param table table name the values are inserted into
@@ -238,6 +459,132 @@ public final class Database {
      * @return id value of updated row, 0 if something went wrong
      */
     public synchronized int execUpdate(String table, Map<String, Object> set, int id) {
+        // include deferred values for this row, they are overwritten by new ones
+        Map<String, Object> merged = mDeferred.remove(table, id);
+        merged.putAll(set);
+        return this.update(table, merged, id);
+    }
+
+    /**
+     * Update values (at most one row) later.
+     * Pending updates of the same row are merged and all pending updates are
+     * written in one transaction. After closing, the update is executed
+     * immediately.
+     */
+    public void execUpdateDeferred(String table, Map<String, Object> set, int id) {
+        if (!mDeferred.add(table, set, id))
+            this.execUpdate(table, set, id);
+    }
+
+    /**
+     * Insert or replace a row later, together with the deferred updates.
+     * @param values values for all columns of the row
+     * @param id key of the row for merging
+     */
+    public void execReplaceDeferred(String table, Map<String, Object> values, int id) {
+        if (mDeferred.addReplace(table, values, id))
+            return;
+        List<List<Object>> rows = new ArrayList<>(1);
+        rows.add(new ArrayList<>(values.values()));
+        this.execReplace(table, new ArrayList<>(values.keySet()), rows);
+    }
+
+    /** Discard a deferred update or replacement of a row. */
+    public void cancelDeferred(String table, int id) {
+        mDeferred.remove(table, id);
+    }
+
+    /** Return if there is a deferred update for a row not written yet. */
+    public boolean isDeferred(String table, int id) {
+        return mDeferred.contains(table, id);
+    }
+
+    /** Write all deferred updates now. */
+    public synchronized void flush() {
+        List<DeferredWriter.Update> updates = mDeferred.drain();
+        if (updates.isEmpty())
+            return;
+
+        try {
+            if (mConn == null || mConn.isClosed()) {
+                LOGGER.warning("db closed, dropping updates: "+updates.size());
+                return;
+            }
+            mConn.setAutoCommit(false);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't begin transaction", ex);
+            return;
+        }
+
+        boolean committed = false;
+        try {
+            for (DeferredWriter.Update update : updates)
+                this.writeOrFail(update);
+            mConn.commit();
+            committed = true;
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't commit deferred updates, retrying one by one: "
+                    +updates.size(), ex);
+            try {
+                mConn.rollback();
+            } catch (SQLException exx) {
+                LOGGER.log(Level.WARNING, "can't rollback", exx);
+            }
+        } finally {
+            try {
+                mConn.setAutoCommit(true);
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't end transaction", ex);
+            }
+        }
+        if (committed)
+            return;
+
+        // only drop the rows that fail
+        for (DeferredWriter.Update update : updates) {
+            try {
+                this.writeOrFail(update);
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't write deferred update, dropping row: "
+                        +update.table+" id="+update.id+" "+update.set, ex);
+            }
+        }
+    }
+
+    private void writeOrFail(DeferredWriter.Update update) throws SQLException {
+        if (update.replace)
+            this.replaceOrFail(update.table, update.set);
+        else
+            this.updateOrFail(update.table, update.set, update.id);
+    }
+
+    private void replaceOrFail(String table, Map<String, Object> values)
+            throws SQLException {
+        List<String> columns = new ArrayList<>(values.keySet());
+        List<String> vList = new ArrayList<>(Collections.nCopies(columns.size(), "?"));
+        String replace = "INSERT OR REPLACE INTO " + table + " (" +
+                StringUtils.join(columns, ", ") + ") VALUES (" +
+                StringUtils.join(vList, ", ") + ")";
+        try (PreparedStatement stat = mConn.prepareStatement(replace)) {
+            insertValues(stat, columns, values);
+            stat.executeUpdate();
+        }
+    }
+
+    private int update(String table, Map<String, Object> set, int id) {
+        try {
+            return this.updateOrFail(table, set, id);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't execute update: " + table + " " + set, ex);
+            return 0;
+        }
+    }
+
+    private int updateOrFail(String table, Map<String, Object> set, int id)
+            throws SQLException {
+        if (set.isEmpty())
+            return 0;
+
         String update = "UPDATE OR FAIL " + table + " SET ";
 
         List<String> keyList = new ArrayList<>(set.keySet());
@@ -255,14 +602,73 @@ public final class Database {
             stat.executeUpdate();
             ResultSet keys = stat.getGeneratedKeys();
             return keys.getInt(1);
+        }
+    }
+
+    /**
+     * Insert or replace rows with the values for the columns specified in one
+     * transaction.
+     */
+    public synchronized boolean execReplace(String table, List<String> columns,
+            List<List<Object>> rows) {
+        if (rows.isEmpty())
+            return true;
+
+        List<String> vList = new ArrayList<>(Collections.nCopies(columns.size(), "?"));
+        String replace = "INSERT OR REPLACE INTO " + table + " (" +
+                StringUtils.join(columns, ", ") + ") VALUES (" +
+                StringUtils.join(vList, ", ") + ")";
+        return this.execBatch(replace, rows);
+    }
+
+    /**
+     * Execute one prepared statement for each row of values in one
+     * transaction.
+     * Insecure to SQL injections, use with caution!
+     */
+    public synchronized boolean execBatchInsecure(String statement,
+            List<List<Object>> rows) {
+        if (rows.isEmpty())
+            return true;
+        return this.execBatch(statement, rows);
+    }
+
+    private boolean execBatch(String statement, List<List<Object>> rows) {
+        try {
+            mConn.setAutoCommit(false);
         } catch (SQLException ex) {
-            LOGGER.log(Level.WARNING, "can't execute update: " + update + " " + set, ex);
-            return 0;
+            LOGGER.log(Level.WARNING, "can't begin transaction", ex);
+            return false;
+        }
+
+        boolean success = false;
+        try (PreparedStatement stat = mConn.prepareStatement(statement)) {
+            for (List<Object> values : rows) {
+                insertValues(stat, values);
+                stat.executeUpdate();
+            }
+            mConn.commit();
+            success = true;
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't execute statement: " + statement, ex);
+            try {
+                mConn.rollback();
+            } catch (SQLException exx) {
+                LOGGER.log(Level.WARNING, "can't rollback", exx);
+            }
+        } finally {
+            try {
+                mConn.setAutoCommit(true);
+            } catch (SQLException ex) {
+                LOGGER.log(Level.WARNING, "can't end transaction", ex);
+            }
         }
+        return success;
     }
 
     public synchronized boolean execDelete(String table, int id) {
         LOGGER.info("deleting id "+id+" from table "+table);
+        mDeferred.remove(table, id);
         try (Statement stat = mConn.createStatement()) {
             stat.executeUpdate("DELETE FROM " + table + " WHERE _id = " + id);
         } catch (SQLException ex) {
@@ -272,6 +678,23 @@ public final class Database {
         return true;
     }
 
+    /**
+     * Delete all rows from one table that match an arbitrary 'where' clause.
+     * Insecure to SQL injections, use with caution!
+     */
+    public synchronized boolean execDeleteWhereInsecure(String table, String where) {
+        LOGGER.info("deleting from table "+table+" where "+where);
+        // pending updates may refer to deleted rows
+        this.flush();
+        try (Statement stat = mConn.createStatement()) {
+            stat.executeUpdate("DELETE FROM " + table + " WHERE " + where);
+        } catch (SQLException ex) {
+            LOGGER.log(Level.WARNING, "can't delete", ex);
+            return false;
+        }
+        return true;
+    }
+
     private static void insertValues(PreparedStatement stat,
             List<String> keys,
             Map<String, Object> map) throws SQLException {
@@ -301,6 +724,8 @@ public final class Database {
                 stat.setInt(i+1, ((Enum) value).ordinal());
             } else if (value instanceof EnumSet) {
                 stat.setInt(i+1, EncodingUtils.enumSetToInt(((EnumSet) value)));
+            } else if (value instanceof byte[]) {
+                stat.setBytes(i+1, (byte[]) value);
             } else if (value instanceof Optional) {
                 Optional<?> o = (Optional) value;
                 setValue(stat, i, o.orElse(null));
@@ -326,6 +751,11 @@ public final class Database {
         return s == null ? "" : s;
     }
 
+    /** Return a string as quoted SQL literal, for 'where' clauses. */
+    public static String quote(String s) {
+        return "'" + s.replace("'", "''") + "'";
+    }
+
     public static String setString(String s) {
         return s.isEmpty() ? null : s;
     }
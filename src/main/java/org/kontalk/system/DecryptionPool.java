@@ -0,0 +1,149 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kontalk.crypto.Coder;
+import org.kontalk.model.InMessage;
+import org.kontalk.model.KonThread;
+
+/**
+ * Decrypt incoming messages concurrently.
+ *
+ * Messages are decrypted in parallel, but the results are applied (and
+ * control is informed) in the order the messages were submitted, per thread.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class DecryptionPool {
+    private static final Logger LOGGER = Logger.getLogger(DecryptionPool.class.getName());
+
+    private final Control mControl;
+    private final ExecutorService mExecutor;
+
+    /** Submitted messages per thread in order, guarded by itself. */
+    private final Map<KonThread, Deque<Task>> mQueues = new HashMap<>();
+    /** Threads whose queue is currently drained by a worker. */
+    private final Set<KonThread> mDraining = new HashSet<>();
+
+    DecryptionPool(Control control) {
+        mControl = control;
+        int size = Runtime.getRuntime().availableProcessors();
+        mExecutor = Executors.newFixedThreadPool(size, new ThreadFactory() {
+            private int mCount = 0;
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Decryption Worker " + ++mCount);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Decrypt a message (if encrypted) in background.
+     * @param notify if control should report the message as new
+     */
+    void submit(InMessage message, boolean notify) {
+        final Task task = new Task(message, notify);
+        final KonThread thread = message.getThread();
+        synchronized (mQueues) {
+            Deque<Task> queue = mQueues.get(thread);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                mQueues.put(thread, queue);
+            }
+            queue.add(task);
+        }
+
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Optional<Coder.InDecryption> result = Optional.empty();
+                try {
+                    if (task.mMessage.getCoderStatus().isEncrypted())
+                        result = Coder.decryptInMessage(task.mMessage);
+                } catch (RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "can't decrypt message", ex);
+                } finally {
+                    // guarded, see drain()
+                    synchronized (mQueues) {
+                        task.mResult = result;
+                        task.mDone = true;
+                    }
+                }
+                DecryptionPool.this.drain(thread);
+            }
+        });
+    }
+
+    /** Complete all finished tasks at the head of the queue of a thread. */
+    private void drain(KonThread thread) {
+        synchronized (mQueues) {
+            if (!mDraining.add(thread))
+                // another worker is draining and will see our result
+                return;
+        }
+
+        while (true) {
+            Task task;
+            synchronized (mQueues) {
+                Deque<Task> queue = mQueues.get(thread);
+                if (queue == null || queue.isEmpty() || !queue.peek().mDone) {
+                    if (queue != null && queue.isEmpty())
+                        mQueues.remove(thread);
+                    mDraining.remove(thread);
+                    return;
+                }
+                task = queue.poll();
+            }
+
+            try {
+                if (task.mResult.isPresent())
+                    Coder.applyInDecryption(task.mMessage, task.mResult.get());
+                mControl.onDecrypted(task.mMessage, task.mNotify);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "can't complete decryption", ex);
+            }
+        }
+    }
+
+    private static final class Task {
+        private final InMessage mMessage;
+        private final boolean mNotify;
+        private Optional<Coder.InDecryption> mResult = Optional.empty();
+        private boolean mDone = false;
+
+        private Task(InMessage message, boolean notify) {
+            mMessage = message;
+            mNotify = notify;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Write-behind queue for row updates and replacements.
+ *
+ * Updates are collected and merged per row; the database writes them all in
+ * one transaction after a short delay or when enough rows are pending.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class DeferredWriter {
+
+    /** Max time an update stays in queue. */
+    private static final int FLUSH_DELAY = 500; // milliseconds
+    /** Max number of pending rows before flushing. */
+    private static final int FLUSH_ROWS = 200;
+
+    private final Database mDB;
+    /** Row key to pending update, in order of first change. */
+    private final Map<String, Update> mPending = new LinkedHashMap<>();
+    private final Timer mTimer = new Timer("Deferred DB Writer", true);
+
+    private TimerTask mScheduledFlush = null;
+    private boolean mStopped = false;
+
+    DeferredWriter(Database db) {
+        mDB = db;
+    }
+
+    /**
+     * Add update for one row, merged with a pending update of this row.
+     * @return false if stopped and the update was not added, else true
+     */
+    synchronized boolean add(String table, Map<String, Object> set, int id) {
+        return this.add(table, set, id, false);
+    }
+
+    /**
+     * Add a replacement (insert or replace) of one row, merged with a pending
+     * replacement of this row. The values must contain all columns.
+     * @return false if stopped and the row was not added, else true
+     */
+    synchronized boolean addReplace(String table, Map<String, Object> values, int id) {
+        return this.add(table, values, id, true);
+    }
+
+    private boolean add(String table, Map<String, Object> set, int id, boolean replace) {
+        if (mStopped)
+            return false;
+
+        String key = key(table, id);
+        Update update = mPending.get(key);
+        if (update == null) {
+            update = new Update(table, id, replace);
+            mPending.put(key, update);
+        }
+        update.set.putAll(set);
+
+        if (mPending.size() >= FLUSH_ROWS) {
+            this.schedule(0);
+        } else if (mScheduledFlush == null) {
+            this.schedule(FLUSH_DELAY);
+        }
+        return true;
+    }
+
+    /** Remove and return a pending update for one row, if there is one. */
+    synchronized Map<String, Object> remove(String table, int id) {
+        Update update = mPending.remove(key(table, id));
+        return update == null ? new HashMap<String, Object>() : update.set;
+    }
+
+    /** Return if there is a pending update for one row. */
+    synchronized boolean contains(String table, int id) {
+        return mPending.containsKey(key(table, id));
+    }
+
+    /** Remove and return all pending updates. */
+    synchronized List<Update> drain() {
+        if (mScheduledFlush != null) {
+            mScheduledFlush.cancel();
+            mScheduledFlush = null;
+        }
+        List<Update> updates = new ArrayList<>(mPending.values());
+        mPending.clear();
+        return updates;
+    }
+
+    synchronized void stop() {
+        mStopped = true;
+        mTimer.cancel();
+    }
+
+    private void schedule(long delay) {
+        if (mScheduledFlush != null)
+            mScheduledFlush.cancel();
+
+        mScheduledFlush = new TimerTask() {
+            @Override
+            public void run() {
+                mDB.flush();
+            }
+        };
+        mTimer.schedule(mScheduledFlush, delay);
+    }
+
+    private static String key(String table, int id) {
+        return table + "/" + id;
+    }
+
+    static final class Update {
+        final String table;
+        final int id;
+        /** Insert or replace the row instead of updating it. */
+        final boolean replace;
+        final Map<String, Object> set = new LinkedHashMap<>();
+
+        private Update(String table, int id, boolean replace) {
+            this.table = table;
+            this.id = id;
+            this.replace = replace;
+        }
+    }
+}
@@ -19,10 +19,17 @@
 package org.kontalk.system;
 
 import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.bouncycastle.openpgp.PGPException;
@@ -31,41 +38,99 @@ import org.kontalk.client.DownloadClient;
 import org.kontalk.crypto.Coder;
 import org.kontalk.crypto.PersonalKey;
 import org.kontalk.model.InMessage;
+import org.kontalk.model.KonThread;
 import org.kontalk.model.MessageContent.Attachment;
 
 /**
  * Downloader for attachments.
+ *
+ * Downloads are done concurrently by a fixed number of worker threads.
+ * Attachments of the thread that is currently shown are downloaded first, then
+ * smaller files. The number of downloads from one host is limited.
+ *
  * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
  */
-public class Downloader implements Runnable {
+public class Downloader {
     private static final Logger LOGGER = Logger.getLogger(Downloader.class.getName());
 
+    private static final int MAX_DOWNLOADS = 4;
+    private static final int MAX_DOWNLOADS_PER_HOST = 2;
+    // partial downloads not resumed within this time are deleted on startup
+    private static final long STALE_PART_AGE = TimeUnit.DAYS.toMillis(1);
+
     private static Downloader INSTANCE = null;
 
-    private final LinkedBlockingQueue<InMessage> mQueue = new LinkedBlockingQueue<>();
+    // waiting tasks, guarded by this
+    private final List<Task> mPending = new ArrayList<>();
+    // waiting and running tasks, guarded by this
+    private final Map<InMessage, Task> mTasks = new HashMap<>();
+    // running downloads per host, guarded by this
+    private final Map<String, Integer> mHostCount = new HashMap<>();
 
     private final File mBaseDir;
 
+    private volatile KonThread mPriorityThread = null;
+    private long mSequence = 0;
+
     private Downloader() {
         String dirPath = Kontalk.getConfigDir() + "/attachments";
         mBaseDir = new File(dirPath);
         boolean created = mBaseDir.mkdirs();
         if (created)
             LOGGER.info("created download directory");
+        else
+            DownloadClient.deleteStaleParts(mBaseDir, STALE_PART_AGE);
     }
 
-    public void queueDownload(InMessage message) {
-        boolean added = mQueue.offer(message);
-        if (!added) {
-            LOGGER.warning("can't add message to download-queue");
+    public synchronized void queueDownload(InMessage message) {
+        if (mTasks.containsKey(message)) {
+            LOGGER.info("download already queued");
+            return;
         }
+        Task task = new Task(message, mSequence++);
+        mTasks.put(message, task);
+        mPending.add(task);
+        this.notifyAll();
+    }
+
+    /**
+     * Cancel a waiting or running download.
+     * @return true if the download was queued, else false
+     */
+    public boolean cancel(InMessage message) {
+        Task task;
+        synchronized (this) {
+            task = mTasks.get(message);
+            if (task == null)
+                return false;
+
+            if (mPending.remove(task)) {
+                mTasks.remove(message);
+                message.setAttachmentDownloadProgress(-3);
+                return true;
+            }
+        }
+        task.abort();
+        return true;
+    }
+
+    public synchronized boolean isQueued(InMessage message) {
+        return mTasks.containsKey(message);
+    }
+
+    /**
+     * Set the thread whose attachments are downloaded first (or null).
+     */
+    public void setPriorityThread(KonThread thread) {
+        mPriorityThread = thread;
     }
 
     public File getBaseDir() {
         return mBaseDir;
     }
 
-    private void downloadAsync(final InMessage message) {
+    private void downloadAsync(Task task) {
+        final InMessage message = task.mMessage;
         Optional<PersonalKey> optKey = AccountLoader.getInstance().getPersonalKey();
         if (!optKey.isPresent()) {
             LOGGER.log(Level.WARNING, "personal key not loaded");
@@ -91,6 +156,7 @@ public class Downloader implements Runnable {
                 bridgeCert,
                 validateCertificate,
                 listener);
+        task.setClient(client);
 
         Optional<Attachment> optAttachment = message.getContent().getAttachment();
         if (!optAttachment.isPresent()) {
@@ -99,7 +165,30 @@ public class Downloader implements Runnable {
         }
         Attachment attachment = optAttachment.get();
 
-        String path = client.download(attachment.getURL(), mBaseDir);
+        boolean encrypted = attachment.getCoderStatus().isEncrypted();
+        if (encrypted && Coder.canDecrypt(message)) {
+            // decrypt while downloading, only the decrypted file is written
+            String path = client.download(attachment.getURL(),
+                    new DownloadClient.ContentHandler() {
+                        @Override
+                        public String handle(InputStream in, String filename) {
+                            return Coder.processAttachmentStream(message, in, filename);
+                        }
+                    });
+            if (!path.isEmpty()) {
+                message.setDecryptedAttachment(new File(path).getName());
+                return;
+            }
+            if (task.isCancelled())
+                return;
+            // download or decryption failed, try again with the encrypted
+            // file that is kept if it can't be decrypted
+            LOGGER.info("streaming decryption failed, downloading encrypted file");
+        }
+
+        // the announced length is of the decrypted file
+        long length = encrypted ? -1 : attachment.getLength();
+        String path = client.download(attachment.getURL(), mBaseDir, length);
         if (path.isEmpty()) {
             // could not be downloaded
             return;
@@ -107,36 +196,147 @@ public class Downloader implements Runnable {
 
         message.setAttachmentFileName(new File(path).getName());
 
-        // decrypt file
-        if (attachment.getCoderStatus().isEncrypted()) {
-            Coder.processAttachment(message);
-        }
+        // decrypt file; if this fails (e.g. keys missing) the errors are set
+        // and the encrypted file is kept
+        if (encrypted)
+            Coder.processAttachment(message, listener);
     }
 
     public String getAttachmentDir() {
         return mBaseDir.getAbsolutePath();
     }
 
-    @Override
-    public void run() {
+    private synchronized Task takeNext() throws InterruptedException {
+        while (true) {
+            Task next = null;
+            for (Task task : mPending) {
+                if (this.hostCount(task.mHost) >= MAX_DOWNLOADS_PER_HOST)
+                    continue;
+                if (next == null || this.compare(task, next) < 0)
+                    next = task;
+            }
+            if (next != null) {
+                mPending.remove(next);
+                mHostCount.put(next.mHost, this.hostCount(next.mHost) + 1);
+                return next;
+            }
+            this.wait();
+        }
+    }
+
+    private synchronized void finished(Task task) {
+        int count = this.hostCount(task.mHost) - 1;
+        if (count > 0)
+            mHostCount.put(task.mHost, count);
+        else
+            mHostCount.remove(task.mHost);
+        mTasks.remove(task.mMessage);
+        this.notifyAll();
+    }
+
+    private int hostCount(String host) {
+        Integer count = mHostCount.get(host);
+        return count == null ? 0 : count;
+    }
+
+    /** Priority order: shown thread first, then smaller files, then FIFO. */
+    private int compare(Task t1, Task t2) {
+        KonThread prio = mPriorityThread;
+        boolean p1 = prio != null && t1.mMessage.getThread() == prio;
+        boolean p2 = prio != null && t2.mMessage.getThread() == prio;
+        if (p1 != p2)
+            return p1 ? -1 : 1;
+        int c = Long.compare(t1.mLength, t2.mLength);
+        if (c != 0)
+            return c;
+        return Long.compare(t1.mSequence, t2.mSequence);
+    }
+
+    private void work() {
         while (true) {
-            InMessage m;
+            Task task;
             try {
                 // blocking
-                m = mQueue.take();
+                task = this.takeNext();
             } catch (InterruptedException ex) {
                 LOGGER.log(Level.WARNING, "interrupted while waiting ", ex);
                 return;
             }
-            this.downloadAsync(m);
+            try {
+                if (task.isCancelled())
+                    task.mMessage.setAttachmentDownloadProgress(-3);
+                else
+                    this.downloadAsync(task);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "download failed", ex);
+            } finally {
+                this.finished(task);
+            }
         }
     }
 
-    public static Downloader getInstance() {
+    public static synchronized Downloader getInstance() {
         if (INSTANCE == null) {
-            INSTANCE = new Downloader();
-            new Thread(INSTANCE).start();
+            final Downloader downloader = new Downloader();
+            for (int i = 0; i < MAX_DOWNLOADS; i++) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        downloader.work();
+                    }
+                }, "Downloader-" + i);
+                thread.setDaemon(true);
+                thread.start();
+            }
+            INSTANCE = downloader;
         }
         return INSTANCE;
     }
+
+    private static final class Task {
+        private final InMessage mMessage;
+        private final long mSequence;
+        private final String mHost;
+        // unknown length is downloaded last
+        private final long mLength;
+
+        private DownloadClient mClient = null;
+        private boolean mCancelled = false;
+
+        private Task(InMessage message, long sequence) {
+            mMessage = message;
+            mSequence = sequence;
+            Optional<Attachment> optAttachment = message.getContent().getAttachment();
+            String url = optAttachment.isPresent() ? optAttachment.get().getURL() : "";
+            mHost = host(url);
+            long length = optAttachment.isPresent() ? optAttachment.get().getLength() : -1;
+            mLength = length < 0 ? Long.MAX_VALUE : length;
+        }
+
+        private synchronized void setClient(DownloadClient client) {
+            mClient = client;
+            if (mCancelled)
+                client.abort();
+        }
+
+        private synchronized boolean isCancelled() {
+            return mCancelled;
+        }
+
+        private synchronized void abort() {
+            mCancelled = true;
+            if (mClient != null)
+                mClient.abort();
+        }
+
+        private static String host(String url) {
+            try {
+                String host = new URI(url).getHost();
+                return host != null ? host : "";
+            } catch (URISyntaxException ex) {
+                LOGGER.log(Level.WARNING, "invalid URL: "+url, ex);
+                return "";
+            }
+        }
+    }
 }
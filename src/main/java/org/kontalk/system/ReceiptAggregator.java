@@ -0,0 +1,150 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kontalk.model.KonMessage;
+import org.kontalk.model.KonThread;
+import org.kontalk.model.OutMessage;
+import org.kontalk.system.Control.MessageIDs;
+
+/**
+ * Collect status updates for outgoing messages (server acknowledgements,
+ * delivery receipts and errors) over a short time window and apply them in
+ * bulk, in order of arrival.
+ *
+ * All changes are written to the database in one transaction and each
+ * affected thread is informed only once.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+final class ReceiptAggregator {
+    private static final Logger LOGGER = Logger.getLogger(ReceiptAggregator.class.getName());
+
+    /** Time in milliseconds updates are collected. */
+    private static final long WINDOW = 250;
+
+    private final Timer mTimer = new Timer("Receipt Timer", true);
+
+    /** Updates in order of arrival, guarded by itself. */
+    private final List<Update> mPending = new ArrayList<>();
+    private boolean mScheduled = false;
+
+    void add(MessageIDs ids, KonMessage.Status status) {
+        this.add(new Update(ids, status, "", ""));
+    }
+
+    void addError(MessageIDs ids, String condition, String errorText) {
+        this.add(new Update(ids, KonMessage.Status.ERROR, condition, errorText));
+    }
+
+    private void add(Update update) {
+        synchronized (mPending) {
+            mPending.add(update);
+            if (mScheduled)
+                return;
+            mScheduled = true;
+        }
+        mTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    ReceiptAggregator.this.flush();
+                } catch (RuntimeException ex) {
+                    LOGGER.log(Level.WARNING, "can't apply receipts", ex);
+                }
+            }
+        }, WINDOW);
+    }
+
+    /** Apply all collected updates now. */
+    synchronized void flush() {
+        List<Update> updates;
+        synchronized (mPending) {
+            updates = new ArrayList<>(mPending);
+            mPending.clear();
+            mScheduled = false;
+        }
+
+        Map<KonThread, Set<KonMessage>> changed = new HashMap<>();
+        for (Update update : updates) {
+            Optional<OutMessage> optMessage = Control.getMessage(update.ids);
+            if (!optMessage.isPresent())
+                continue;
+            OutMessage m = optMessage.get();
+
+            if (update.status == KonMessage.Status.ERROR) {
+                // rare, view is informed by message
+                m.setError(update.condition, update.errorText);
+                continue;
+            }
+
+            if (m.getReceiptStatus() == KonMessage.Status.RECEIVED)
+                // probably by another client
+                continue;
+
+            if (m.getReceiptStatus() == KonMessage.Status.ERROR)
+                // don't overwrite error
+                continue;
+
+            if (!m.setStatusQuietly(update.status))
+                continue;
+
+            Set<KonMessage> messages = changed.get(m.getThread());
+            if (messages == null) {
+                messages = new HashSet<>();
+                changed.put(m.getThread(), messages);
+            }
+            messages.add(m);
+        }
+
+        // write deferred updates in one transaction
+        Database.getInstance().flush();
+
+        for (Map.Entry<KonThread, Set<KonMessage>> entry : changed.entrySet())
+            entry.getKey().setMessagesChanged(entry.getValue());
+
+        LOGGER.info("applied status updates: "+updates.size()+", threads: "+changed.size());
+    }
+
+    private static final class Update {
+        final MessageIDs ids;
+        final KonMessage.Status status;
+        final String condition;
+        final String errorText;
+
+        Update(MessageIDs ids, KonMessage.Status status, String condition,
+                String errorText) {
+            this.ids = ids;
+            this.status = status;
+            this.condition = condition;
+            this.errorText = errorText;
+        }
+    }
+}
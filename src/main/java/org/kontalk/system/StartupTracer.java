@@ -0,0 +1,116 @@
+/*
+ *  Kontalk Java client
+ *  Copyright (C) 2014 Kontalk Devteam <devteam@kontalk.org>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.kontalk.system;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records the duration and allocated memory of startup phases and creates a
+ * report.
+ *
+ * Allocation is measured for the thread that records the phases; work done
+ * in other threads is only visible in the heap usage.
+ *
+ * @author Alexander Bikadorov {@literal <bikaejkb@mail.tu-berlin.de>}
+ */
+public final class StartupTracer {
+    private static final StartupTracer INSTANCE = new StartupTracer();
+
+    private final List<Phase> mPhases = new ArrayList<>();
+    private final MemoryMXBean mMemoryBean = ManagementFactory.getMemoryMXBean();
+
+    private long mStart;
+    private long mLast;
+    private long mLastAllocated;
+
+    private StartupTracer() {
+        this.begin();
+    }
+
+    /** (Re-)start recording; all recorded phases are discarded. */
+    public synchronized void begin() {
+        mPhases.clear();
+        mStart = mLast = System.nanoTime();
+        mLastAllocated = allocatedBytes();
+    }
+
+    /** Mark the end of a phase that started when the previous phase ended. */
+    public synchronized void phase(String name) {
+        long now = System.nanoTime();
+        long allocated = allocatedBytes();
+        mPhases.add(new Phase(name,
+                now - mLast,
+                now - mStart,
+                allocated < 0 ? -1 : allocated - mLastAllocated,
+                mMemoryBean.getHeapMemoryUsage().getUsed()));
+        mLast = now;
+        mLastAllocated = allocated;
+    }
+
+    /** Return a report of all recorded phases. */
+    public synchronized String report() {
+        StringBuilder sb = new StringBuilder("startup report:");
+        for (Phase phase : mPhases) {
+            sb.append(String.format("%n  %-20s %6d ms (total %6d ms), allocated %8s KiB, heap %8d KiB",
+                    phase.name,
+                    phase.duration / 1000000,
+                    phase.total / 1000000,
+                    phase.allocated < 0 ? "?" : Long.toString(phase.allocated / 1024),
+                    phase.heapUsed / 1024));
+        }
+        return sb.toString();
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        // only available on HotSpot-like JVMs
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return -1;
+        com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported() ||
+                !sunBean.isThreadAllocatedMemoryEnabled())
+            return -1;
+        return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public static StartupTracer getInstance() {
+        return INSTANCE;
+    }
+
+    private static final class Phase {
+        final String name;
+        final long duration;
+        final long total;
+        final long allocated;
+        final long heapUsed;
+
+        private Phase(String name, long duration, long total, long allocated,
+                long heapUsed) {
+            this.name = name;
+            this.duration = duration;
+            this.total = total;
+            this.allocated = allocated;
+            this.heapUsed = heapUsed;
+        }
+    }
+}
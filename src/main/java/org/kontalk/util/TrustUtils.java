@@ -25,11 +25,13 @@ import java.io.InputStream;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
 import java.util.Enumeration;
@@ -41,6 +43,7 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
+import org.bouncycastle.util.encoders.Hex;
 import org.kontalk.Kontalk;
 import org.kontalk.crypto.PGPUtils;
 
@@ -53,16 +56,50 @@ public class TrustUtils {
 
     private static final String TRUSSTORE_FILE = "truststore.bks";
 
+    /** Number of cached TLS sessions for resumption. */
+    private static final int SESSION_CACHE_SIZE = 32;
+    /** Lifetime of cached TLS sessions in seconds. */
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
     private static TrustManager BLIND_TM = null;
     private static KeyStore MERGED_TS = null;
 
+    // last created context and its key, guarded by class
+    private static SSLContext CONTEXT = null;
+    private static String CONTEXT_KEY = "";
+
     /**
      * Get a custom SSL context for secure server connections. The key store of
      * the context contains the private key and bridge certificate. The trust
      * manager contains system and own certificates or blindly accepts every
      * server certificate.
      */
-    public static SSLContext getCustomSSLContext(
+    public static synchronized SSLContext getCustomSSLContext(
+            PrivateKey privateKey,
+            X509Certificate bridgeCert,
+            boolean validateCertificate)
+            throws KeyStoreException,
+            IOException,
+            NoSuchAlgorithmException,
+            CertificateException,
+            UnrecoverableKeyException,
+            NoSuchProviderException,
+            KeyManagementException {
+        // the context is cached as long as key and certificate are the same,
+        // its session cache allows resuming TLS sessions
+        String key = contextKey(privateKey, bridgeCert, validateCertificate);
+        if (CONTEXT != null && key.equals(CONTEXT_KEY))
+            return CONTEXT;
+
+        SSLContext ctx = createSSLContext(privateKey, bridgeCert, validateCertificate);
+        ctx.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        ctx.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT);
+        CONTEXT = ctx;
+        CONTEXT_KEY = key;
+        return ctx;
+    }
+
+    private static SSLContext createSSLContext(
             PrivateKey privateKey,
             X509Certificate bridgeCert,
             boolean validateCertificate)
@@ -73,6 +110,7 @@ public class TrustUtils {
             UnrecoverableKeyException,
             NoSuchProviderException,
             KeyManagementException {
+        LOGGER.info("creating SSL context");
         // in-memory keystore
         KeyStore keystore = KeyStore.getInstance(KeyStore.getDefaultType());
         keystore.load(null, null);
@@ -104,6 +142,17 @@ public class TrustUtils {
         return ctx;
     }
 
+    /** SHA-256 fingerprint of key and certificate, and the validation flag. */
+    private static String contextKey(PrivateKey privateKey,
+            X509Certificate bridgeCert,
+            boolean validateCertificate)
+            throws NoSuchAlgorithmException, CertificateEncodingException {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(privateKey.getEncoded());
+        digest.update(bridgeCert.getEncoded());
+        return Hex.toHexString(digest.digest()) + ":" + validateCertificate;
+    }
+
     private static TrustManager getBlindTrustManager() {
         if (BLIND_TM == null) {
             BLIND_TM = new X509TrustManager() {
@@ -151,6 +151,16 @@ final class MessageList extends Table<MessageList.MessageItem, KonMessage> {
             return;
         }
 
+        if (arg instanceof KonThread.MessagesChanged) {
+            // bulk status update
+            for (KonMessage message : ((KonThread.MessagesChanged) arg).messages) {
+                Optional<MessageItem> optItem = this.getItem(message);
+                if (optItem.isPresent())
+                    optItem.get().updateOnEDT(message.getReceiptStatus());
+            }
+            return;
+        }
+
         if (arg instanceof KonThread.ViewSettings) {
             this.setBackground((KonThread.ViewSettings) arg);
             if (mThreadView.getCurrentThread().orElse(null) == mThread) {
@@ -165,7 +175,7 @@ final class MessageList extends Table<MessageList.MessageItem, KonMessage> {
         } else {
             // check for new messages to add
             if (this.getModel().getRowCount() < mThread.getMessages().getAll().size())
-                this.insertMessages();
+                this.insertMessages(true);
         }
 
         if (mThreadView.getCurrentThread().orElse(null) == mThread) {
@@ -173,18 +183,49 @@ final class MessageList extends Table<MessageList.MessageItem, KonMessage> {
         }
     }
 
-    private void insertMessages() {
+    private void insertMessages(boolean scroll) {
         Set<MessageItem> newItems = new HashSet<>();
         for (KonMessage message: mThread.getMessages().getAll()) {
             if (!this.containsValue(message)) {
                 newItems.add(new MessageItem(message));
-                // trigger scrolling
-                mThreadView.setScrolling();
+                if (scroll)
+                    // trigger scrolling
+                    mThreadView.setScrolling();
             }
         }
         this.sync(mThread.getMessages().getAll(), newItems);
     }
 
+    /** Return the first displayed message, empty if the list is empty. */
+    Optional<KonMessage> getFirstMessage() {
+        if (this.getRowCount() == 0)
+            return Optional.empty();
+        return Optional.of(this.getDisplayedItemAt(0).mValue);
+    }
+
+    /**
+     * Show older messages that were loaded.
+     * Return the new y position of the row of the previous first message, or
+     * -1 if not found.
+     */
+    int showOlder(KonMessage first) {
+        this.insertMessages(false);
+
+        for (int i = 0; i < this.getRowCount(); i++) {
+            if (this.getDisplayedItemAt(i).mValue == first)
+                return this.getCellRect(i, 0, true).y;
+        }
+        return -1;
+    }
+
+    /** Remove all older messages from view (and memory) except the newest. */
+    void evictOlder() {
+        if (!mThread.getMessages().evictOlder())
+            return;
+
+        this.sync(mThread.getMessages().getAll(), new HashSet<MessageItem>());
+    }
+
     private void insertMessage(KonMessage message) {
         Set<MessageItem> newItems = new HashSet<>();
         newItems.add(new MessageItem(message));
@@ -549,6 +590,18 @@ final class MessageList extends Table<MessageList.MessageItem, KonMessage> {
                 });
                 popupMenu.add(decryptMenuItem);
             }
+            if (mValue instanceof InMessage &&
+                    Downloader.getInstance().isQueued((InMessage) mValue)) {
+                WebMenuItem cancelMenuItem = new WebMenuItem(Tr.tr("Cancel download"));
+                cancelMenuItem.setToolTipText(Tr.tr("Stop downloading the attachment"));
+                cancelMenuItem.addActionListener(new ActionListener() {
+                    @Override
+                    public void actionPerformed(ActionEvent event) {
+                        mView.getControl().cancelDownload((InMessage) MessageItem.this.mValue);
+                    }
+                });
+                popupMenu.add(cancelMenuItem);
+            }
             WebMenuItem cItem = Utils.createCopyMenuItem(
                     this.toPrettyString(),
                     Tr.tr("Copy message content"));
@@ -142,6 +142,10 @@ abstract class Table<I extends Table<I, V>.TableItem, V extends Observable> exte
         return mItems.containsKey(value);
     }
 
+    protected Optional<I> getItem(V value) {
+        return Optional.ofNullable(mItems.get(value));
+    }
+
     @SuppressWarnings("unchecked")
     protected void sync(Set<V> values, Set<I> newItems) {
         // TODO performance
@@ -151,6 +155,7 @@ abstract class Table<I extends Table<I, V>.TableItem, V extends Observable> exte
             if (!values.contains(item.mValue)) {
                 item.onRemove();
                 item.mValue.deleteObserver(item);
+                mItems.remove(item.mValue);
                 mModel.removeRow(i);
                 i--;
             }
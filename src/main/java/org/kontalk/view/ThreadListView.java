@@ -29,18 +29,23 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Optional;
 import java.util.Set;
-import java.util.SortedSet;
+import java.util.Timer;
+import java.util.TimerTask;
 import javax.swing.ListSelectionModel;
+import javax.swing.SwingUtilities;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import org.kontalk.system.Config;
 import org.kontalk.model.KonMessage;
 import org.kontalk.model.KonThread;
 import org.kontalk.model.KonThread.KonChatState;
+import org.kontalk.model.MessageSearch;
 import org.kontalk.model.ThreadList;
+import org.kontalk.model.ThreadMessages;
 import org.kontalk.model.User;
 import org.kontalk.util.Tr;
 import org.kontalk.view.ThreadListView.ThreadItem;
@@ -51,9 +56,22 @@ import org.kontalk.view.ThreadListView.ThreadItem;
  */
 final class ThreadListView extends Table<ThreadItem, KonThread> {
 
+    /** Max number of message search hits for filtering threads. */
+    private static final int SEARCH_LIMIT = 500;
+    /** Time in milliseconds to wait for more input before searching. */
+    private static final long SEARCH_DELAY = 300;
+
     private final ThreadList mThreadList;
     private final WebPopupMenu mPopupMenu;
 
+    /** IDs of threads with messages matching the current search. */
+    private Set<Integer> mSearchHits = new HashSet<>();
+    /** Current search text, only accessed on EDT. */
+    private String mSearchText = "";
+
+    private final Timer mSearchTimer = new Timer("Message Search", true);
+    private TimerTask mSearchTask = null;
+
     ThreadListView(final View view, ThreadList threadList) {
         super(view);
         mThreadList = threadList;
@@ -132,6 +150,52 @@ final class ThreadListView extends Table<ThreadItem, KonThread> {
             if (!this.containsValue(thread))
                 newItems.add(new ThreadItem(thread));
         this.sync(threads, newItems);
+
+        if (arg == null) {
+            // threads loaded or previews arrived; sort only once
+            this.updateAllItems();
+            this.updateSorting();
+        }
+    }
+
+    @Override
+    void filterItems(final String search) {
+        mSearchText = search;
+        if (mSearchTask != null)
+            mSearchTask.cancel();
+
+        if (search.isEmpty()) {
+            mSearchTask = null;
+            mSearchHits = new HashSet<>();
+        } else {
+            // search messages in background when typing stopped, filtered
+            // again with the hits
+            mSearchTask = new TimerTask() {
+                @Override
+                public void run() {
+                    ThreadListView.this.searchMessages(search);
+                }
+            };
+            mSearchTimer.schedule(mSearchTask, SEARCH_DELAY);
+        }
+        super.filterItems(search);
+    }
+
+    private void searchMessages(final String search) {
+        final Set<Integer> hits = new HashSet<>();
+        for (MessageSearch.Hit hit : MessageSearch.search(search, SEARCH_LIMIT))
+            hits.add(hit.threadID);
+
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (!search.equals(mSearchText))
+                    // outdated
+                    return;
+                mSearchHits = hits;
+                ThreadListView.super.filterItems(search);
+            }
+        });
     }
 
     void selectLastThread() {
@@ -245,7 +309,8 @@ final class ThreadListView extends Table<ThreadItem, KonThread> {
                 this.updateBG();
 
                 mStatusLabel.setText(lastActivity(mValue));
-                ThreadListView.this.updateSorting();
+                if (arg != null)
+                    ThreadListView.this.updateSorting();
             } else if (arg instanceof Boolean) {
                 this.updateBG();
             }
@@ -287,26 +352,29 @@ final class ThreadListView extends Table<ThreadItem, KonThread> {
                         user.getJID().toLowerCase().contains(search))
                     return true;
             }
-            return mValue.getSubject().toLowerCase().contains(search);
+            return mValue.getSubject().toLowerCase().contains(search) ||
+                    mSearchHits.contains(mValue.getID());
         }
 
         @Override
         public int compareTo(TableItem o) {
-            SortedSet<KonMessage> messages = this.mValue.getMessages().getAll();
-            if (messages.isEmpty())
+            Optional<Date> date = this.mValue.getMessages().getLastDate();
+            if (!date.isPresent())
                 return -1;
-            SortedSet<KonMessage> oMessages = o.mValue.getMessages().getAll();
-            if (oMessages.isEmpty())
+            Optional<Date> oDate = o.mValue.getMessages().getLastDate();
+            if (!oDate.isPresent())
                 return 1;
 
-            return -messages.last().getDate().compareTo(oMessages.last().getDate());
+            return -date.get().compareTo(oDate.get());
         }
     }
 
     private static String lastActivity(KonThread thread) {
-        SortedSet<KonMessage> messageSet = thread.getMessages().getAll();
-        String lastActivity = messageSet.isEmpty() ? Tr.tr("no messages yet") :
-                    Utils.PRETTY_TIME.format(messageSet.last().getDate());
+        ThreadMessages messages = thread.getMessages();
+        Optional<Date> date = messages.getLastDate();
+        String lastActivity = !messages.hasLastDate() ? Tr.tr("loading...") :
+                !date.isPresent() ? Tr.tr("no messages yet") :
+                Utils.PRETTY_TIME.format(date.get());
 
         return Tr.tr("Last activity")+": " + lastActivity;
     }
@@ -27,6 +27,7 @@ import com.alee.laf.splitpane.WebSplitPane;
 import com.alee.laf.viewport.WebViewport;
 import com.alee.managers.popup.PopupAdapter;
 import com.alee.managers.popup.WebPopup;
+import java.awt.Adjustable;
 import java.awt.BorderLayout;
 import java.awt.Color;
 import java.awt.Component;
@@ -35,6 +36,7 @@ import java.awt.GradientPaint;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
 import java.awt.Image;
+import java.awt.Point;
 import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
@@ -49,13 +51,19 @@ import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import static javax.swing.JSplitPane.VERTICAL_SPLIT;
 import javax.swing.JViewport;
 import javax.swing.SwingUtilities;
+import org.kontalk.model.KonMessage;
 import org.kontalk.model.KonThread;
 import org.kontalk.model.ThreadList;
+import org.kontalk.model.ThreadMessages;
 import org.kontalk.model.User;
 import org.kontalk.system.Config;
+import org.kontalk.system.Downloader;
 import org.kontalk.util.Tr;
 
 /**
@@ -74,6 +82,17 @@ final class ThreadView extends WebPanel implements Observer {
     private WebPopup mPopup = new WebPopup();
 
     private boolean mScrollDown = false;
+    // loading older messages, only one page at a time, EDT only
+    private boolean mLoadingOlder = false;
+    private final ExecutorService mLoader = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Message Loader");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
 
     ThreadView(View view, Component sendTextField, Component sendButton) {
         mView = view;
@@ -114,8 +133,32 @@ final class ThreadView extends WebPanel implements Observer {
                 // scrolling down WHILE rendering until the final bottom is reached
                 if (e.getValueIsAdjusting())
                     mScrollDown = false;
-                if (mScrollDown)
+                if (mScrollDown) {
                     e.getAdjustable().setValue(e.getAdjustable().getMaximum());
+                    return;
+                }
+
+                // load or evict older message pages at the top and bottom
+                Adjustable a = e.getAdjustable();
+                if (a.getMaximum() <= a.getVisibleAmount())
+                    return;
+                if (a.getValue() == a.getMinimum()) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            ThreadView.this.loadOlder();
+                        }
+                    });
+                } else if (a.getValue() + a.getVisibleAmount() >= a.getMaximum()) {
+                    SwingUtilities.invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            Optional<MessageList> optList = ThreadView.this.getCurrentList();
+                            if (optList.isPresent())
+                                optList.get().evictOlder();
+                        }
+                    });
+                }
             }
         });
         mScrollPane.setViewport(new WebViewport() {
@@ -182,6 +225,9 @@ final class ThreadView extends WebPanel implements Observer {
         MessageList list = mThreadCache.get(thread.getID());
         mScrollPane.getViewport().setView(list);
 
+        // attachments of shown thread are downloaded first
+        Downloader.getInstance().setPriorityThread(thread);
+
         thread.setRead();
     }
 
@@ -219,6 +265,43 @@ final class ThreadView extends WebPanel implements Observer {
         }
     }
 
+    private void loadOlder() {
+        Optional<MessageList> optList = this.getCurrentList();
+        if (!optList.isPresent() || mLoadingOlder)
+            return;
+
+        final MessageList list = optList.get();
+        final Optional<KonMessage> optFirst = list.getFirstMessage();
+        if (!optFirst.isPresent())
+            return;
+
+        // database query in background, update view on EDT
+        mLoadingOlder = true;
+        final ThreadMessages messages = list.getThread().getMessages();
+        mLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean loaded = messages.loadOlder();
+                SwingUtilities.invokeLater(new Runnable() {
+                    @Override
+                    public void run() {
+                        mLoadingOlder = false;
+                        if (loaded)
+                            ThreadView.this.showOlder(list, optFirst.get());
+                    }
+                });
+            }
+        });
+    }
+
+    private void showOlder(MessageList list, KonMessage first) {
+        int y = list.showOlder(first);
+        Optional<MessageList> optList = this.getCurrentList();
+        if (y > 0 && optList.isPresent() && optList.get() == list)
+            // keep the previous first message at the top
+            mScrollPane.getViewport().setViewPosition(new Point(0, y));
+    }
+
     void setScrolling() {
         mScrollDown = true;
     }